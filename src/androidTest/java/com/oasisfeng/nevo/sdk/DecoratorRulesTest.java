@@ -0,0 +1,81 @@
+package com.oasisfeng.nevo.sdk;
+
+import android.os.Process;
+import android.util.Xml;
+
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static com.oasisfeng.nevo.sdk.TestUtils.b;
+import static com.oasisfeng.nevo.sdk.TestUtils.create;
+import static com.oasisfeng.nevo.sdk.TestUtils.now;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DecoratorRulesTest {
+
+	@Test public void testMatchingAndActions() throws IOException, XmlPullParserException {
+		final DecoratorRules rules = parse("<rules>"
+				+ "<rule package='a,b' title='^Group: ' group='groups' />"
+				+ "<rule package='a' sortKey='z' />"
+				+ "<rule group='others' />"
+				+ "</rules>");
+
+		final MutableStatusBarNotification group_chat = createWithTitle("a", "Group: Test");
+		assertTrue(rules.apply(group_chat));
+		assertEquals("groups", group_chat.getNotification().getGroup());
+		assertNull(group_chat.getNotification().getSortKey());		// Only the first matching rule is applied.
+
+		final MutableStatusBarNotification single_chat = createWithTitle("a", "Test");
+		assertTrue(rules.apply(single_chat));
+		assertEquals("z", single_chat.getNotification().getSortKey());
+
+		final MutableStatusBarNotification chat = createWithTitle("b", "Test");
+		assertTrue(rules.apply(chat));
+		assertEquals("others", chat.getNotification().getGroup());	// Rule for any package is still applicable to package with specific rules.
+
+		final MutableStatusBarNotification other = createWithTitle("c", "Group: Test");
+		assertTrue(rules.apply(other));
+		assertEquals("others", other.getNotification().getGroup());
+	}
+
+	@Test public void testNoMatch() throws IOException, XmlPullParserException {
+		final DecoratorRules rules = parse("<rules><rule package='a' channel='x' group='g' /></rules>");
+		final MutableStatusBarNotification sbn = createWithTitle("b", "Test");
+		assertFalse(rules.apply(sbn));
+		assertNull(sbn.getNotification().getGroup());
+	}
+
+	@Test public void testValidation() throws IOException {
+		assertInvalid("<rules><rule package='a' /></rules>");						// No action
+		assertInvalid("<rules><rule package='a' color='red' /></rules>");			// Unknown attribute
+		assertInvalid("<rules><rule title='(' group='g' /></rules>");				// Invalid regular expression
+		assertInvalid("<rules><rule group='g' groupAlertBehavior='none' /></rules>");
+		assertInvalid("<rules><rule package='' group='g' /></rules>");
+		assertInvalid("<rules><filter group='g' /></rules>");						// Unknown element
+	}
+
+	private static void assertInvalid(final String xml) throws IOException {
+		try {
+			parse(xml);
+			fail("Not rejected: " + xml);
+		} catch (final XmlPullParserException ignored) {}
+	}
+
+	private static DecoratorRules parse(final String xml) throws XmlPullParserException, IOException {
+		final XmlPullParser parser = Xml.newPullParser();
+		parser.setInput(new StringReader(xml));
+		return DecoratorRules.parse(parser);
+	}
+
+	private static MutableStatusBarNotification createWithTitle(final String pkg, final String title) {
+		return create(pkg, null, 1, Process.myUserHandle(), Process.myUid(), b().setContentTitle(title).build(), now());
+	}
+}
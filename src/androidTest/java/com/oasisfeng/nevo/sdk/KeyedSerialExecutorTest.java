@@ -0,0 +1,79 @@
+package com.oasisfeng.nevo.sdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyedSerialExecutorTest {
+
+	@Test public void testOrderedForSameKey() throws InterruptedException {
+		final KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 4);
+		final List<Integer> sequence = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch done = new CountDownLatch(100);
+		for (int i = 0; i < 100; i ++) {
+			final int index = i;
+			executor.execute("key", () -> { sequence.add(index); done.countDown(); });
+		}
+		assertTrue(done.await(5, SECONDS));
+		for (int i = 0; i < 100; i ++) assertEquals(i, (int) sequence.get(i));
+	}
+
+	@Test public void testParallelAcrossKeys() throws InterruptedException {
+		final KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 2);
+		final CountDownLatch both_running = new CountDownLatch(2);
+		final Runnable task = () -> {
+			both_running.countDown();
+			try { both_running.await(5, SECONDS); } catch (final InterruptedException ignored) {}
+		};
+		executor.execute("a", task);
+		executor.execute("b", task);
+		assertTrue(both_running.await(5, SECONDS));		// Would time out if "b" waits for "a".
+	}
+
+	@Test public void testOrderedForMultipleKeys() throws InterruptedException {
+		final KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 2);
+		final List<String> sequence = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch release_a = new CountDownLatch(1), done = new CountDownLatch(3);
+		executor.execute("a", () -> {
+			try { release_a.await(5, SECONDS); } catch (final InterruptedException ignored) {}
+			sequence.add("a"); done.countDown();
+		});
+		executor.execute(Arrays.asList("a", "b"), () -> { sequence.add("a+b"); done.countDown(); });
+		executor.execute("b", () -> { sequence.add("b"); done.countDown(); });		// Held by the preceding multi-key task
+		release_a.countDown();
+		assertTrue(done.await(5, SECONDS));
+		assertEquals(Arrays.asList("a", "a+b", "b"), sequence);
+	}
+
+	@Test public void testExceptionPropagation() {
+		final KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 1);
+		try {
+			executor.executeAndWait("key", () -> { throw new IllegalArgumentException(); });
+			fail("No exception thrown");
+		} catch (final IllegalArgumentException ignored) {}
+		executor.executeAndWait("key", () -> {});		// Key is not stuck after exception
+	}
+
+	@Test public void testChainedAfterError() throws InterruptedException {
+		final Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((thread, e) -> {});		// The worker thread dies with the Error.
+		try {
+			final KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 1);
+			final CountDownLatch next = new CountDownLatch(1);
+			executor.execute("key", () -> { throw new AssertionError(); });
+			executor.execute("key", next::countDown);
+			assertTrue(next.await(5, SECONDS));		// Key is not stuck after Error
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.oasisfeng.nevo.sdk;
 import android.app.Notification;
 import android.app.Notification.Action;
 import android.graphics.drawable.Icon;
+import android.os.Bundle;
 import android.os.Parcel;
 import android.support.test.InstrumentationRegistry;
 
@@ -17,8 +18,12 @@ import static android.os.Build.VERSION_CODES.O;
 import static com.oasisfeng.nevo.sdk.TestUtils.b;
 import static com.oasisfeng.nevo.sdk.TestUtils.mutable;
 import static com.oasisfeng.nevo.sdk.TestUtils.n;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -53,6 +58,103 @@ PERSON: testMutation(mutable, MutableNotification::addPerson, m -> m.extras.getS
 PUBLIC: testMutation(mutable, (m, p) -> m.publicVersion = p, m -> ensureParcelingEquality(m.publicVersion), n(), b().setGroup("x").build());
 	}
 
+	@Test public void testExtrasMutationWithParceling() {
+		final MutableNotification mutable = mutable(b().setContentText("Text").setSubText("Sub").build());
+		mutable.extras.putCharSequence(Notification.EXTRA_TITLE, "Title");
+		mutable.extras.remove(Notification.EXTRA_SUB_TEXT);
+		mutable.extras.putString("custom", "value");
+
+		final MutableNotification replied = TestUtils.incPup(mutable);
+		assertEquals("Title", replied.extras.getCharSequence(Notification.EXTRA_TITLE).toString());
+		assertEquals("Text", replied.extras.getCharSequence(Notification.EXTRA_TEXT).toString());		// Untouched
+		assertFalse(replied.extras.containsKey(Notification.EXTRA_SUB_TEXT));
+		assertEquals("value", replied.extras.getString("custom"));
+	}
+
+	@Test public void testEditor() {
+		final MutableNotification mutable = mutable(n());
+		mutable.addAction(new Action.Builder(RES_ICON, "Reply", null).build());
+		final MutableNotification.Editor editor = mutable.edit().setGroup("G1").setSortKey("S1").addPerson("Tom").addPerson("Jerry")
+				.addAction(new Action.Builder(RES_ICON, "Hello", null).build()).addAction(new Action.Builder(RES_ICON, "Reply", null).build());
+		assertEquals(1, mutable.actions.length);		// Not applied until commit
+		editor.commit();
+		editor.rollback();		// No-op after commit
+
+		final MutableNotification replied = TestUtils.incPup(mutable);
+		assertEquals("G1", replied.getGroup());
+		assertEquals("S1", replied.getSortKey());
+		assertArrayEquals(new String[] { "Tom", "Jerry" }, replied.extras.getStringArray(Notification.EXTRA_PEOPLE));
+		assertEquals(2, replied.actions.length);
+		assertEquals("Reply", replied.actions[0].title.toString());		// Replaced in place
+		assertEquals("Hello", replied.actions[1].title.toString());
+
+		final MutableNotification.Editor abandoned = mutable.edit().setGroup("G2").addPerson("Spike");
+		abandoned.rollback();
+		assertEquals("G1", mutable.getGroup());
+		assertEquals(2, mutable.extras.getStringArray(Notification.EXTRA_PEOPLE).length);
+		try {
+			abandoned.commit();
+			fail("Committed after rollback");
+		} catch (final IllegalStateException ignored) {}
+	}
+
+	@Test public void testShippedIconReadBack() {
+		final IconCache icons = new IconCache(IconCache.CAPACITY / 2);
+		icons.reset(true);
+		final MutableNotification first = mutable(n());
+		first.setLargeIcon(DATA_ICON);
+		writeBack(first, icons, true);		// Shipped
+
+		final MutableNotification second = mutable(n());
+		second.setLargeIcon(DATA_ICON);
+		assertTrue(writeBack(second, icons, true).containsKey(MutableNotificationBaseImpl.EXTRA_ICON_LARGE_REF));
+		assertSame(DATA_ICON, second.getLargeIcon());		// Referenced in write-back, but never in the instance itself.
+	}
+
+	@Test public void testIconReferencePerDecorator() {
+		final IconCache decorator_a = new IconCache(IconCache.CAPACITY / 2), decorator_b = new IconCache(IconCache.CAPACITY / 2);
+		decorator_a.reset(true);
+		decorator_b.reset(true);
+		final MutableNotification first = mutable(n());
+		first.setLargeIcon(DATA_ICON);
+		writeBack(first, decorator_a, true);		// Shipped by decorator A only
+
+		final MutableNotification second = mutable(n());
+		second.setLargeIcon(DATA_ICON);
+		final Bundle written = writeBack(second, decorator_b, true);
+		assertTrue(written.containsKey(MutableNotificationBaseImpl.EXTRA_ICON_LARGE));
+		assertFalse(written.containsKey(MutableNotificationBaseImpl.EXTRA_ICON_LARGE_REF));
+	}
+
+	@Test public void testIconNotShippedByAsyncResult() {
+		final IconCache icons = new IconCache(IconCache.CAPACITY / 2);
+		icons.reset(true);
+		final MutableNotification first = mutable(n());
+		first.setLargeIcon(DATA_ICON);
+		writeBack(first, icons, false);		// Asynchronous result, may be dropped by engine
+
+		final MutableNotification second = mutable(n());
+		second.setLargeIcon(DATA_ICON);
+		final Bundle written = writeBack(second, icons, true);
+		assertTrue(written.containsKey(MutableNotificationBaseImpl.EXTRA_ICON_LARGE));
+		assertFalse(written.containsKey(MutableNotificationBaseImpl.EXTRA_ICON_LARGE_REF));
+	}
+
+	/** @return the extras written back, captured by a local stand-in of the remote implementation */
+	private static Bundle writeBack(final MutableNotification mutable, final IconCache icons, final boolean ship) {
+		final RemoteImplementation.WriteBack write_back = RemoteImplementation.sWriteBack;
+		final Bundle[] written = new Bundle[1];
+		RemoteImplementation.sWriteBack = (out, flags, notification, original) -> written[0] = new Bundle(notification.extras);
+		final Parcel parcel = Parcel.obtain();
+		try {
+			((MutableNotificationBaseImpl) mutable).writeBackToParcel(parcel, 0, false, icons, ship);
+			return written[0];
+		} finally {
+			RemoteImplementation.sWriteBack = write_back;
+			parcel.recycle();
+		}
+	}
+
 	@SafeVarargs private static <T> void testMutation(final MutableNotification mutable, final BiConsumer<MutableNotification, T> setter,
 													  final Function<MutableNotification, T> getter, final T... values) {
 		for (final T value : values) {
@@ -17,12 +17,36 @@
 package com.oasisfeng.nevo.sdk;
 
 import android.app.Notification;
+import android.app.NotificationChannel;
 import android.content.Intent;
+import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
 import android.test.ServiceTestCase;
+import android.util.Xml;
 
+import com.oasisfeng.nevo.decorator.IApplyCallback;
 import com.oasisfeng.nevo.decorator.INevoDecorator;
+import com.oasisfeng.nevo.engine.INevoController;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE;
 
 public class NevoDecoratorServiceTest extends ServiceTestCase<NevoDecoratorServiceTest.TestNevoDecoratorService> {
 
@@ -41,14 +65,202 @@ public class NevoDecoratorServiceTest extends ServiceTestCase<NevoDecoratorServi
 		} catch (final NullPointerException ignored) {}
 	}
 
+	public void testApplyBatch() throws RemoteException {
+		final INevoDecorator decorator = connect(5);
+		sApply = sbn -> {
+			if (sbn.getId() == 2) throw new IllegalStateException();
+			sbn.setTag("batch");
+		};
+		final List<MutableStatusBarNotification> batch = new ArrayList<>(Arrays.asList(create(1), create(2)));
+		decorator.applyBatch(batch, null);
+		assertNull(batch.get(1));		// Failure is isolated
+		assertEquals("batch/1", readBack(batch.get(0), 0));	// Incremental, though written by AIDL without PARCELABLE_WRITE_RETURN_VALUE
+
+		sApply = sbn -> SystemClock.sleep(200);
+		final List<MutableStatusBarNotification> exceeded = new ArrayList<>(Arrays.asList(create(1), create(2)));
+		decorator.applyBatch(exceeded, deadline(SystemClock.elapsedRealtime() + 100));
+		assertEquals(Arrays.asList(null, null), exceeded);	// All kept intact
+	}
+
+	public void testApplyAsync() throws RemoteException {
+		final INevoDecorator decorator = connect(5);
+		sApply = sbn -> sbn.setTag("async");
+		final RecordingCallback callback = new RecordingCallback();
+		decorator.applyAsync(create(), callback, null);
+		assertNull(callback.mError);
+		assertNotNull(callback.mApplied);
+		assertEquals("async/1", readBack(callback.mApplied, 0));
+
+		sApply = sbn -> { throw new IllegalStateException(); };
+		final RecordingCallback failing = new RecordingCallback();
+		decorator.applyAsync(create(), failing, null);
+		assertNull(failing.mApplied);
+		assertNotNull(failing.mError);
+	}
+
+	public void testDeadline() throws RemoteException {
+		final INevoDecorator decorator = connect(5);
+		final int[] applied = { 0 };
+		sApply = sbn -> applied[0] ++;
+		final MutableStatusBarNotification expired = create();
+		decorator.apply(expired, deadline(SystemClock.elapsedRealtime() - 1));
+		assertEquals(0, applied[0]);		// Skipped
+		assertEquals("unchanged/1", readBack(expired, PARCELABLE_WRITE_RETURN_VALUE));
+
+		sApply = sbn -> {
+			assertTrue(sbn.getRemainingTimeBudget() > 0);
+			sbn.setTag("late");
+			sbn.setId(2);
+			SystemClock.sleep(200);
+		};
+		final MutableStatusBarNotification exceeded = create();
+		decorator.apply(exceeded, deadline(SystemClock.elapsedRealtime() + 100));
+		assertEquals("late", exceeded.getTag());
+		assertEquals("unchanged/1", readBack(exceeded, PARCELABLE_WRITE_RETURN_VALUE));	// Mutations abandoned
+	}
+
+	public void testTracing() throws RemoteException, IOException {
+		final IBinder binder = bindService(new Intent()/* Not used */);
+		getService().setTraceRecording(64);
+		final RecordingController controller = new RecordingController();
+		connect(binder, 5, controller);
+		getService().cancelNotification("a");
+		assertEquals(Collections.singletonList(NevoDecoratorService.ACTION_CANCEL + ":a"), controller.mActions);		// Delivered through the tracing binder
+
+		final StringWriter writer = new StringWriter();
+		getService().exportTrace(writer);
+		final String trace = writer.toString();
+		assertTrue(trace, trace.contains(TraceRecorder.EVENT_CONNECT));
+		assertTrue(trace, trace.contains("nevo:controller.performNotificationAction"));
+	}
+
+	public void testBatchActions() throws RemoteException {
+		final IBinder binder = bindService(new Intent()/* Not used */);
+		final RecordingController controller = new RecordingController();
+		connect(binder, 5, controller);
+		getService().cancelNotifications(Arrays.asList("a", "b"));
+		getService().snoozeNotifications(Collections.emptyList(), 60_000);		// Nothing to perform
+		assertEquals(Collections.singletonList(NevoDecoratorService.ACTION_CANCEL + ":[a, b]"), controller.mActions);
+
+		controller.mActions.clear();
+		connect(binder, 4, controller);		// One by one for older engines
+		getService().cancelNotifications(Arrays.asList("a", "b"));
+		assertEquals(Arrays.asList(NevoDecoratorService.ACTION_CANCEL + ":a", NevoDecoratorService.ACTION_CANCEL + ":b"), controller.mActions);
+	}
+
+	public void testUncacheableKeys() throws IOException, XmlPullParserException {
+		final NotificationFilters filters = NotificationFilters.parse(parser("<filters><filter category='msg' /></filters>"));
+		final DecoratorRules rules = DecoratorRules.parse(parser("<rules><rule title='^Group: ' sortKey='z' /></rules>"));
+		final StatusBarNotification dispatched = create("a", "Test", Notification.CATEGORY_MESSAGE),
+				handled_by_rule = create("b", "Group: Test", Notification.CATEGORY_MESSAGE), filtered_out = create("c", "Test", null);
+		final List<String> keys = Arrays.asList(dispatched.getKey(), handled_by_rule.getKey(), filtered_out.getKey(), "missing");
+		final List<StatusBarNotification> results = Arrays.asList(dispatched, handled_by_rule, filtered_out);
+
+		assertEquals(new HashSet<>(keys.subList(1, 4)), NevoDecoratorService.getUncacheableKeys(keys, results, rules, filters));
+		assertEquals(new HashSet<>(keys.subList(2, 4)), NevoDecoratorService.getUncacheableKeys(keys, results, null, filters));
+		assertEquals(Collections.emptySet(), NevoDecoratorService.getUncacheableKeys(keys, results, null, null));	// Everything is dispatched
+	}
+
+	@Override protected void tearDown() throws Exception {
+		sApply = null;
+		super.tearDown();
+	}
+
+	private INevoDecorator connect(final int api_version) throws RemoteException {
+		return connect(bindService(new Intent()/* Not used */), api_version, null);
+	}
+
+	private static INevoDecorator connect(final IBinder binder, final int api_version, final INevoController controller) throws RemoteException {
+		final INevoDecorator decorator = INevoDecorator.Stub.asInterface(binder);
+		final Bundle options = new Bundle();
+		options.putInt(NevoDecoratorService.KEY_SUPPORTED_API_VERSION, api_version);
+		decorator.onConnected(controller, options);
+		return decorator;
+	}
+
+	private static Bundle deadline(final long deadline) {
+		final Bundle options = new Bundle();
+		options.putLong(NevoDecoratorService.KEY_DEADLINE, deadline);
+		return options;
+	}
+
+	private static MutableStatusBarNotification create() { return create(1); }
+
+	private static MutableStatusBarNotification create(final int id) {
+		return TestUtils.create("pkg", "tag", id, android.os.Process.myUserHandle(), 0, TestUtils.n(), TestUtils.now());
+	}
+
+	private static MutableStatusBarNotification create(final String tag, final String title, final String category) {
+		final Notification n = TestUtils.b().setContentTitle(title).setCategory(category).build();
+		return TestUtils.create("pkg", tag, 1, android.os.Process.myUserHandle(), 0, n, TestUtils.now());
+	}
+
+	private static XmlPullParser parser(final String xml) throws XmlPullParserException {
+		final XmlPullParser parser = Xml.newPullParser();
+		parser.setInput(new StringReader(xml));
+		return parser;
+	}
+
+	/** @return the tag ("unchanged" if not written back) and ID in the write-back header */
+	private static String readBack(final Parcelable written, final int flags) {
+		final Parcel parcel = Parcel.obtain();
+		try {
+			written.writeToParcel(parcel, flags);
+			parcel.setDataPosition(0);
+			if (written instanceof IncrementalWriteBack) parcel.readInt();		// Size
+			final int mark = parcel.readInt();
+			final String tag = mark == 0 ? "unchanged" : mark == - 1 ? null : parcel.readString();
+			return tag + "/" + parcel.readInt();
+		} finally {
+			parcel.recycle();
+		}
+	}
+
 	public NevoDecoratorServiceTest() {
 		super(TestNevoDecoratorService.class);
 	}
 
+	private static class RecordingCallback extends IApplyCallback.Stub {
+
+		@Override public void onApplied(final IncrementalWriteBack evolved, final Bundle options) { mApplied = evolved; }
+		@Override public void onError(final String error, final Bundle options) { mError = error; }
+
+		IncrementalWriteBack mApplied;
+		String mError;
+	}
+
+	/** Records actions performed, as "action:key" or "action:[keys]" for batch. */
+	private static class RecordingController extends INevoController.Stub {
+
+		@Override public List<StatusBarNotification> getNotifications(final INevoDecorator token, final int type, final List<String> keys, final int limit, final Bundle args) {
+			return Collections.emptyList();
+		}
+
+		@Override public void performNotificationAction(final INevoDecorator token, final int action, final String key, final Bundle args) {
+			mActions.add(action + ":" + key);
+		}
+
+		@Override public void performNotificationActions(final INevoDecorator token, final int action, final List<String> keys, final Bundle args) {
+			mActions.add(action + ":" + keys);
+		}
+
+		@Override public void createNotificationChannels(final INevoDecorator token, final String pkg, final List<NotificationChannel> channels, final Bundle args) {}
+		@Override public List<NotificationChannel> getNotificationChannels(final INevoDecorator token, final String pkg, final List<String> channels, final Bundle args) { return null; }
+		@Override public void deleteNotificationChannel(final INevoDecorator token, final String pkg, final String channel, final Bundle args) {}
+		@Override public Map getNotificationChannelsOfPackages(final INevoDecorator token, final List<String> pkgs, final List<String> channels, final Bundle args) { return null; }
+
+		final List<String> mActions = new ArrayList<>();
+	}
+
+	private interface Decoration { void apply(MutableStatusBarNotification evolving); }
+	private static volatile Decoration sApply;		// Throw NullPointerException in apply() if not set
+
 	public static class TestNevoDecoratorService extends NevoDecoratorService {
 
 		@Override protected void apply(final MutableStatusBarNotification evolved) {
-			throw new NullPointerException();
+			final Decoration decoration = sApply;
+			if (decoration == null) throw new NullPointerException();
+			decoration.apply(evolved);
 		}
 	}
 }
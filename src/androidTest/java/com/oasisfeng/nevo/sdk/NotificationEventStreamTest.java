@@ -0,0 +1,66 @@
+package com.oasisfeng.nevo.sdk;
+
+import android.app.Notification;
+import android.os.Process;
+
+import com.oasisfeng.nevo.sdk.NotificationEventStream.Event;
+import com.oasisfeng.nevo.sdk.NotificationEventStream.OverflowPolicy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.oasisfeng.nevo.sdk.TestUtils.now;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationEventStreamTest {
+
+	@Test public void testDropOldest() throws InterruptedException {
+		final NotificationEventStream stream = new NotificationEventStream(2, OverflowPolicy.DROP_OLDEST, mConsumer);
+		post(stream, "a"); post(stream, "b"); post(stream, "c");
+		assertEquals(1, stream.getDroppedCount());
+		assertEvents(stream, 2, "b:1", "c:1");
+	}
+
+	@Test public void testCoalescePerKey() throws InterruptedException {
+		final NotificationEventStream stream = new NotificationEventStream(2, OverflowPolicy.COALESCE_PER_KEY, mConsumer);
+		post(stream, "a"); post(stream, "b"); post(stream, "a");
+		assertEquals(0, stream.getDroppedCount());
+		assertEvents(stream, 2, "b:1", "a:1");		// Update coalesced into post
+	}
+
+	@Test public void testHoldBack() throws InterruptedException {
+		final NotificationEventStream stream = new NotificationEventStream(1, OverflowPolicy.HOLD_BACK, mConsumer);
+		post(stream, "a"); post(stream, "b"); stream.onRemoved("a", null, 0);
+		assertEquals(0, stream.getDroppedCount());
+		assertEvents(stream, 3, "a:1", "b:1", "a:3");
+		assertEquals(1, mMaxBatchSize);		// Never exceeding capacity
+	}
+
+	private static void post(final NotificationEventStream stream, final String tag) {
+		stream.onPosted(tag, TestUtils.create("pkg", tag, 1, Process.myUserHandle(), Process.myUid(), new Notification(), now()));
+	}
+
+	private void assertEvents(final NotificationEventStream stream, final int count, final String... expected) throws InterruptedException {
+		mLatch = new CountDownLatch(count);
+		stream.start();
+		assertTrue(mLatch.await(5, SECONDS));
+		stream.close();
+		final List<String> actual = new ArrayList<>();
+		synchronized (mEvents) { for (final Event event : mEvents) actual.add(event.getKey() + ":" + event.getType()); }
+		assertEquals(Arrays.asList(expected), actual);
+	}
+
+	private final List<Event> mEvents = new ArrayList<>();
+	private volatile CountDownLatch mLatch;
+	private int mMaxBatchSize;		// Guarded by mEvents
+	private final NotificationEventStream.Consumer mConsumer = events -> {
+		synchronized (mEvents) { mEvents.addAll(events); mMaxBatchSize = Math.max(mMaxBatchSize, events.size()); }
+		for (int i = 0; i < events.size(); i ++) mLatch.countDown();
+	};
+}
@@ -0,0 +1,41 @@
+package com.oasisfeng.nevo.sdk;
+
+import android.app.Notification;
+import android.os.Process;
+import android.util.Xml;
+
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static com.oasisfeng.nevo.sdk.TestUtils.b;
+import static com.oasisfeng.nevo.sdk.TestUtils.now;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationFiltersTest {
+
+	@Test public void testMatching() throws IOException, XmlPullParserException {
+		final XmlPullParser parser = Xml.newPullParser();
+		parser.setInput(new StringReader("<filters>"
+				+ "<filter template='BigTextStyle' />"
+				+ "<filter package='a' category='msg' extra='test.key' />"
+				+ "</filters>"));
+		final NotificationFilters filters = NotificationFilters.parse(parser);
+
+		assertTrue(filters.matches(create("b", b().setStyle(new Notification.BigTextStyle()).build())));
+		assertFalse(filters.matches(create("b", b().setCategory(Notification.CATEGORY_MESSAGE).build())));
+
+		final Notification.Builder message = b().setCategory(Notification.CATEGORY_MESSAGE);
+		assertFalse(filters.matches(create("a", message.build())));		// Extra absent
+		message.getExtras().putBoolean("test.key", true);
+		assertTrue(filters.matches(create("a", message.build())));
+	}
+
+	private static MutableStatusBarNotification create(final String pkg, final Notification n) {
+		return TestUtils.create(pkg, null, 1, Process.myUserHandle(), Process.myUid(), n, now());
+	}
+}
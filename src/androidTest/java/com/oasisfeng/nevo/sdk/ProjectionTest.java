@@ -0,0 +1,40 @@
+package com.oasisfeng.nevo.sdk;
+
+import android.app.Notification;
+import android.widget.RemoteViews;
+
+import org.junit.Test;
+
+import static android.app.Notification.EXTRA_PEOPLE;
+import static android.app.Notification.EXTRA_TEXT;
+import static android.app.Notification.EXTRA_TITLE;
+import static com.oasisfeng.nevo.sdk.TestUtils.b;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProjectionTest {
+
+	@Test public void testTrim() {
+		final Notification n = b().setContentText("Text").build();
+		n.extras.putString(MutableNotificationBaseImpl.EXTRA_GROUP, "group");
+		n.contentView = n.bigContentView = new RemoteViews("android", android.R.layout.simple_list_item_1);
+		n.actions = new Notification.Action[] { new Notification.Action(0, "Action", null) };
+		n.extras.putStringArray(EXTRA_PEOPLE, new String[] { "tel:1" });
+
+		Projection.parse("android.title, bigContentView").trim(n);
+		assertEquals("Hello", n.extras.getString(EXTRA_TITLE));
+		assertFalse(n.extras.containsKey(EXTRA_TEXT));
+		assertTrue(n.extras.containsKey(MutableNotificationBaseImpl.EXTRA_GROUP));	// Internal extras are always kept.
+		assertEquals(1, n.actions.length);		// Fields merged by helpers are always kept.
+		assertTrue(n.extras.containsKey(EXTRA_PEOPLE));
+		assertNull(n.contentView);
+		assertNotNull(n.bigContentView);
+	}
+
+	@Test(expected = IllegalArgumentException.class) public void testEmpty() {
+		Projection.parse(" , ");
+	}
+}
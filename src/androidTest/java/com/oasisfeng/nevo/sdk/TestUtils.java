@@ -35,7 +35,7 @@ public class TestUtils {
 		final Parcel parcel = Parcel.obtain();
 		RemoteImplementation.initializeIfNotYet(InstrumentationRegistry.getTargetContext());
 		try {
-			RemoteImplementation.writeBackToParcel(parcel, 0, mutable, ((MutableNotificationBaseImpl) mutable).getOriginalMutableKeeper());
+			((MutableNotificationBaseImpl) mutable).writeBackToParcel(parcel, 0);
 			parcel.setDataPosition(0);
 			RemoteImplementationTest.readBackFrom(parcel, mutable);
 			return mutable;
@@ -0,0 +1,62 @@
+package com.oasisfeng.nevo.sdk;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.text.SpannableString;
+import android.text.style.StyleSpan;
+
+import org.junit.Test;
+
+import static android.graphics.Typeface.BOLD;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ValueComparisonTest {
+
+	@Test public void testSeparatelyUnparceledValues() {
+		final Bundle bundle = new Bundle();
+		bundle.putString("string", "value");
+		bundle.putIntArray("ints", new int[] { 1, 2 });
+		bundle.putParcelable("bitmap", Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888));
+		final Bundle message = new Bundle();
+		message.putCharSequence("text", "Hi");
+		bundle.putParcelableArray("messages", new Bundle[] { message });
+		final SpannableString spanned = new SpannableString("Spanned");
+		spanned.setSpan(new StyleSpan(BOLD), 0, 3, 0);
+		bundle.putCharSequence("spanned", spanned);
+
+		final Bundle a = unparcel(bundle), b = unparcel(bundle);
+		assertTrue(ValueComparison.isParcelled(a));
+		for (final String key : bundle.keySet()) assertTrue(key, ValueComparison.equal(a.get(key), b.get(key)));
+		assertFalse(ValueComparison.isParcelled(a));
+
+		final SpannableString span_changed = new SpannableString("Spanned");
+		span_changed.setSpan(new StyleSpan(BOLD), 0, 4, 0);
+		assertFalse(ValueComparison.equal(spanned, span_changed));
+		assertFalse(ValueComparison.equal(new int[] { 1, 2 }, new int[] { 1, 3 }));
+	}
+
+	@Test public void testEqualToParcelled() {
+		final Bundle bundle = new Bundle();
+		bundle.putString("string", "value");
+		bundle.putIntArray("ints", new int[] { 1, 2 });
+		final Bundle accessed = unparcel(bundle), parcelled = unparcel(bundle);
+		accessed.size();		// Un-parcel
+		assertTrue(ValueComparison.equalToParcelled(accessed, parcelled));
+		assertTrue(ValueComparison.isParcelled(parcelled));		// Never un-parceled by comparison
+		accessed.putString("string", "changed");
+		assertFalse(ValueComparison.equalToParcelled(accessed, parcelled));
+	}
+
+	private static Bundle unparcel(final Bundle bundle) {
+		final Parcel parcel = Parcel.obtain();
+		try {
+			parcel.writeBundle(bundle);
+			parcel.setDataPosition(0);
+			return parcel.readBundle(ValueComparisonTest.class.getClassLoader());
+		} finally {
+			parcel.recycle();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.app.Notification;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.content.res.XmlResourceParser;
+import android.service.notification.StatusBarNotification;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.RestrictTo;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.M;
+import static android.os.Build.VERSION_CODES.O;
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Declarative rules of decorator, compiled from XML resource referenced by meta-data {@link NevoDecoratorService#META_KEY_RULES}.
+ * Rules are grouped by package upon compilation, so that only rules applicable to the package of notification are evaluated.
+ *
+ * <pre>
+ * &lt;rules&gt;
+ *     &lt;rule package="com.example.chat" template="MessagingStyle" title="^Group: " group="chat_groups" groupAlertBehavior="summary" /&gt;
+ *     &lt;rule channel="promotion" sortKey="z" /&gt;
+ * &lt;/rules&gt;
+ * </pre>
+ *
+ * Criteria are described in {@link NotificationMatcher}. Actions are "group", "sortKey", "channelId" (Android O+)
+ * and "groupAlertBehavior" ("all", "summary" or "children", Android O+). Only the first matching rule is applied.
+ *
+ * This is an internal class, NEVER use it in decorator project.
+ */
+@RestrictTo(LIBRARY) @RequiresApi(M) public class DecoratorRules {
+
+	/** @return the compiled rules of the decorator service, or null if not declared. */
+	public static @Nullable DecoratorRules load(final PackageManager pm, final ServiceInfo service) throws XmlPullParserException, IOException {
+		final XmlResourceParser parser = service.loadXmlMetaData(pm, NevoDecoratorService.META_KEY_RULES);
+		if (parser == null) return null;
+		try {
+			return parse(parser);
+		} finally {
+			parser.close();		// XmlResourceParser is not AutoCloseable before Android N
+		}
+	}
+
+	public static DecoratorRules parse(final XmlPullParser parser) throws XmlPullParserException, IOException {
+		final List<Rule> rules = new ArrayList<>();
+		int type;
+		while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+			if (type != XmlPullParser.START_TAG) continue;
+			final String tag = parser.getName();
+			if (parser.getDepth() == 1 && TAG_RULES.equals(tag)) continue;
+			if (parser.getDepth() == 2 && TAG_RULE.equals(tag)) rules.add(parseRule(parser));
+			else throw new XmlPullParserException("Unexpected element: " + tag, parser, null);
+		}
+		return new DecoratorRules(rules);
+	}
+
+	/** @return whether the notification is handled by rules. */
+	public boolean apply(final MutableStatusBarNotification sbn) {
+		final Rule rule = findRule(sbn);
+		if (rule == null) return false;
+		rule.applyTo(sbn.getNotification());		// Snapshot of original values is only taken if any rule matches.
+		return true;
+	}
+
+	/** @return whether the notification would be handled by rules, without applying any. */
+	boolean matches(final StatusBarNotification sbn) {
+		return findRule(sbn) != null;
+	}
+
+	private @Nullable Rule findRule(final StatusBarNotification sbn) {
+		final Rule[] rules = mRulesByPackage.get(sbn.getPackageName());
+		for (final Rule rule : rules != null ? rules : mRulesForAnyPackage)
+			if (rule.matcher.matches(sbn)) return rule;
+		return null;
+	}
+
+	private static Rule parseRule(final XmlPullParser parser) throws XmlPullParserException {
+		for (int i = 0; i < parser.getAttributeCount(); i ++) {
+			final String attribute = parser.getAttributeName(i);
+			if (! NotificationMatcher.isCriterion(attribute) && ! isAction(attribute))
+				throw new XmlPullParserException("Unknown attribute: " + attribute, parser, null);
+		}
+		final String group = parser.getAttributeValue(null, ATTR_GROUP), sort_key = parser.getAttributeValue(null, ATTR_SORT_KEY),
+				channel_id = parser.getAttributeValue(null, ATTR_CHANNEL_ID), behavior = parser.getAttributeValue(null, ATTR_GROUP_ALERT_BEHAVIOR);
+		if (group == null && sort_key == null && channel_id == null && behavior == null)
+			throw new XmlPullParserException("No action in rule", parser, null);
+		return new Rule(NotificationMatcher.parse(parser), group, sort_key, channel_id, parseGroupAlertBehavior(parser, behavior));
+	}
+
+	private static boolean isAction(final String attribute) {
+		switch (attribute) {
+		case ATTR_GROUP: case ATTR_SORT_KEY: case ATTR_CHANNEL_ID: case ATTR_GROUP_ALERT_BEHAVIOR: return true;
+		default: return false;
+		}
+	}
+
+	private static int parseGroupAlertBehavior(final XmlPullParser parser, final @Nullable String value) throws XmlPullParserException {
+		if (value == null) return - 1;
+		switch (value) {
+		case "all": return Notification.GROUP_ALERT_ALL;
+		case "summary": return Notification.GROUP_ALERT_SUMMARY;
+		case "children": return Notification.GROUP_ALERT_CHILDREN;
+		default: throw new XmlPullParserException("Invalid \"" + ATTR_GROUP_ALERT_BEHAVIOR + "\": " + value, parser, null);
+		}
+	}
+
+	private DecoratorRules(final List<Rule> rules) {
+		final List<Rule> rules_for_any_package = new ArrayList<>();
+		final Map<String, List<Rule>> rules_by_package = new HashMap<>();
+		for (final Rule rule : rules) {
+			final Set<String> pkgs = rule.matcher.getPackages();
+			if (pkgs == null) rules_for_any_package.add(rule);
+			else for (final String pkg : pkgs) if (! rules_by_package.containsKey(pkg)) rules_by_package.put(pkg, new ArrayList<>());
+		}
+		for (final Rule rule : rules) {		// In declaration order, including rules for any package.
+			final Set<String> pkgs = rule.matcher.getPackages();
+			for (final Map.Entry<String, List<Rule>> entry : rules_by_package.entrySet())
+				if (pkgs == null || pkgs.contains(entry.getKey())) entry.getValue().add(rule);
+		}
+		mRulesForAnyPackage = rules_for_any_package.toArray(new Rule[0]);
+		for (final Map.Entry<String, List<Rule>> entry : rules_by_package.entrySet())
+			mRulesByPackage.put(entry.getKey(), entry.getValue().toArray(new Rule[0]));
+	}
+
+	private final Map<String, Rule[]> mRulesByPackage = new HashMap<>();
+	private final Rule[] mRulesForAnyPackage;
+
+	private static final String TAG_RULES = "rules";
+	private static final String TAG_RULE = "rule";
+	private static final String ATTR_GROUP = "group";
+	private static final String ATTR_SORT_KEY = "sortKey";
+	private static final String ATTR_CHANNEL_ID = "channelId";
+	private static final String ATTR_GROUP_ALERT_BEHAVIOR = "groupAlertBehavior";
+
+	private static class Rule {
+
+		void applyTo(final MutableNotification n) {
+			if (group != null) n.setGroup(group);
+			if (sort_key != null) n.setSortKey(sort_key);
+			if (SDK_INT >= O) {
+				if (channel_id != null) n.setChannelId(channel_id);
+				if (group_alert_behavior >= 0) n.setGroupAlertBehavior(group_alert_behavior);
+			}
+		}
+
+		Rule(final NotificationMatcher matcher, final @Nullable String group, final @Nullable String sort_key,
+			 final @Nullable String channel_id, final int group_alert_behavior) {
+			this.matcher = matcher;
+			this.group = group;
+			this.sort_key = sort_key;
+			this.channel_id = channel_id;
+			this.group_alert_behavior = group_alert_behavior;
+		}
+
+		final NotificationMatcher matcher;
+		final @Nullable String group, sort_key, channel_id;
+		final int group_alert_behavior;		// -1 for not set
+	}
+}
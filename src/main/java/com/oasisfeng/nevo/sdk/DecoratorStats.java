@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime statistics of decorator, recorded with lock-free and allocation-free (except the first occurrence of package or exception type) histograms.
+ *
+ * Live instance is only accessible to SDK, decorator gets a copy by {@link NevoDecoratorService#getDecoratorStats()}, which is detached from
+ * further recording, but not atomic as a whole: events recorded concurrently with the copying may be partially reflected (e.g. in count
+ * but not yet in buckets), since recording is never blocked.
+ */
+public class DecoratorStats {
+
+	/** Latency (in nanoseconds) of {@link NevoDecoratorService#apply(MutableStatusBarNotification)}, per package of notification. */
+	public Map<String, Histogram> getApplyLatencies() { return Collections.unmodifiableMap(mApplyLatencies); }
+	/** Latency (in nanoseconds) of {@link NevoDecoratorService#apply(java.util.List)} for the whole batch. */
+	public Histogram getBatchApplyLatency() { return mBatchApplyLatency; }
+	/** Latency (in nanoseconds) of removal callbacks. */
+	public Histogram getRemovalLatency() { return mRemovalLatency; }
+	/** Size (in bytes) of incoming parcels from engine. */
+	public Histogram getIncomingBytes() { return mIncomingBytes; }
+	/** Size (in bytes) of outgoing parcels to engine. */
+	public Histogram getOutgoingBytes() { return mOutgoingBytes; }
+	/** Exceptions thrown by decorator, counted per type. */
+	public Map<String, Long> getExceptions() {
+		final Map<String, Long> exceptions = new TreeMap<>();
+		for (final Map.Entry<Class<?>, AtomicLong> entry : mExceptions.entrySet()) exceptions.put(entry.getKey().getName(), entry.getValue().get());
+		return exceptions;
+	}
+
+	void onApplied(final String pkg, final long nanos) {
+		Histogram histogram = mApplyLatencies.get(pkg);
+		if (histogram == null) {
+			final Histogram existent = mApplyLatencies.putIfAbsent(pkg, histogram = new Histogram());
+			if (existent != null) histogram = existent;
+		}
+		histogram.record(nanos);
+	}
+
+	void onBatchApplied(final long nanos) { mBatchApplyLatency.record(nanos); }
+	void onRemovalHandled(final long nanos) { mRemovalLatency.record(nanos); }
+	void onTransaction(final int incoming_bytes, final int outgoing_bytes) {
+		mIncomingBytes.record(incoming_bytes);
+		if (outgoing_bytes >= 0) mOutgoingBytes.record(outgoing_bytes);
+	}
+
+	void onException(final Throwable t) {
+		AtomicLong counter = mExceptions.get(t.getClass());
+		if (counter == null) {
+			final AtomicLong existent = mExceptions.putIfAbsent(t.getClass(), counter = new AtomicLong());
+			if (existent != null) counter = existent;
+		}
+		counter.incrementAndGet();
+	}
+
+	/** @return a copy detached from further recording, not atomic as a whole (see class doc). */
+	DecoratorStats snapshot() {
+		final DecoratorStats copy = new DecoratorStats();
+		for (final Map.Entry<String, Histogram> entry : mApplyLatencies.entrySet()) copy.mApplyLatencies.put(entry.getKey(), entry.getValue().copy());
+		copy.mBatchApplyLatency.copyFrom(mBatchApplyLatency);
+		copy.mRemovalLatency.copyFrom(mRemovalLatency);
+		copy.mIncomingBytes.copyFrom(mIncomingBytes);
+		copy.mOutgoingBytes.copyFrom(mOutgoingBytes);
+		for (final Map.Entry<Class<?>, AtomicLong> entry : mExceptions.entrySet()) copy.mExceptions.put(entry.getKey(), new AtomicLong(entry.getValue().get()));
+		return copy;
+	}
+
+	void dump(final PrintWriter writer, final String prefix) {
+		writer.append(prefix).println("Apply latency (µs):");
+		for (final Map.Entry<String, Histogram> entry : new TreeMap<>(mApplyLatencies).entrySet())
+			entry.getValue().dump(writer.append(prefix).append("  ").append(entry.getKey()).append(": "), 1000);
+		mBatchApplyLatency.dump(writer.append(prefix).append("Batch apply latency (µs): "), 1000);
+		mRemovalLatency.dump(writer.append(prefix).append("Removal latency (µs): "), 1000);
+		mIncomingBytes.dump(writer.append(prefix).append("Incoming parcel (bytes): "), 1);
+		mOutgoingBytes.dump(writer.append(prefix).append("Outgoing parcel (bytes): "), 1);
+		writer.append(prefix).println("Exceptions:");
+		for (final Map.Entry<String, Long> entry : getExceptions().entrySet())
+			writer.append(prefix).append("  ").append(entry.getKey()).append(": ").println(entry.getValue());
+	}
+
+	private final ConcurrentMap<String, Histogram> mApplyLatencies = new ConcurrentHashMap<>();
+	private final Histogram mBatchApplyLatency = new Histogram();
+	private final Histogram mRemovalLatency = new Histogram();
+	private final Histogram mIncomingBytes = new Histogram();
+	private final Histogram mOutgoingBytes = new Histogram();
+	private final ConcurrentMap<Class<?>, AtomicLong> mExceptions = new ConcurrentHashMap<>();
+
+	/** Histogram with power-of-2 buckets: bucket 0 for value 0, bucket N (N > 0) for values in [2^(N-1), 2^N). */
+	public static class Histogram {
+
+		public static final int NUM_BUCKETS = 48;	// Up to 2^47, about 39 hours in nanoseconds.
+
+		public long getCount() { return mCount.get(); }
+		public long getSum() { return mSum.get(); }
+		public long getMax() { return mMax.get(); }
+		public long getBucketCount(final int bucket) { return mBuckets.get(bucket); }
+
+		/** @return the upper bound of bucket where the given percentile (0 ~ 100) falls in, or 0 if empty. */
+		public long getPercentile(final float percentile) {
+			final long count = mCount.get();
+			if (count == 0) return 0;
+			final long threshold = (long) Math.ceil(count * percentile / 100);
+			long accumulated = 0;
+			for (int i = 0; i < NUM_BUCKETS; i ++) {
+				accumulated += mBuckets.get(i);
+				if (accumulated >= threshold) return Math.min(upperBoundOf(i), mMax.get());
+			}
+			return mMax.get();
+		}
+
+		void record(final long value) {
+			final long v = Math.max(value, 0);
+			mBuckets.incrementAndGet(bucketOf(v));
+			mCount.incrementAndGet();
+			mSum.addAndGet(v);
+			for (long max = mMax.get(); v > max; max = mMax.get())
+				if (mMax.compareAndSet(max, v)) break;
+		}
+
+		private static int bucketOf(final long value) {
+			return Math.min(64 - Long.numberOfLeadingZeros(value), NUM_BUCKETS - 1);
+		}
+
+		private static long upperBoundOf(final int bucket) {
+			return bucket == 0 ? 0 : (1L << bucket) - 1;
+		}
+
+		private Histogram copy() {
+			final Histogram copy = new Histogram();
+			copy.copyFrom(this);
+			return copy;
+		}
+
+		private void copyFrom(final Histogram source) {		// Not atomic as a whole, but close enough for statistics.
+			for (int i = 0; i < NUM_BUCKETS; i ++) mBuckets.set(i, source.mBuckets.get(i));
+			mCount.set(source.mCount.get());
+			mSum.set(source.mSum.get());
+			mMax.set(source.mMax.get());
+		}
+
+		private void dump(final PrintWriter writer, final long unit) {
+			final long count = mCount.get();
+			if (count == 0) { writer.println("-"); return; }
+			writer.append("count=").append(String.valueOf(count)).append(", avg=").append(String.valueOf(mSum.get() / count / unit))
+					.append(", p50<=").append(String.valueOf(getPercentile(50) / unit)).append(", p90<=").append(String.valueOf(getPercentile(90) / unit))
+					.append(", p99<=").append(String.valueOf(getPercentile(99) / unit)).append(", max=").println(mMax.get() / unit);
+		}
+
+		private final AtomicLongArray mBuckets = new AtomicLongArray(NUM_BUCKETS);
+		private final AtomicLong mCount = new AtomicLong(), mSum = new AtomicLong(), mMax = new AtomicLong();
+	}
+}
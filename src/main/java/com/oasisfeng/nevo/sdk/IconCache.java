@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.content.res.ColorStateList;
+import android.graphics.Bitmap;
+import android.graphics.PorterDuff;
+import android.graphics.drawable.Icon;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.RestrictTo;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static android.os.Build.VERSION_CODES.M;
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Content-addressed cache of icons shipped across the process boundary, to let identical icons (e.g. avatar in a busy conversation)
+ * be referenced by content digest instead of parceled again on every update.
+ *
+ * <p>Both sides keep an instance per decorator connection with LRU policy: decorator marks an icon as shipped once written back
+ * in a reply certainly received by engine (synchronous apply only), while engine registers every icon received from that decorator
+ * and resolves the references with {@link #get(long)}.
+ * Since engine restart loses its side, decorator must {@link #reset(boolean) reset} its side on every connection.
+ *
+ * This is an internal class, NEVER use it in decorator project.
+ */
+@RestrictTo(LIBRARY) @RequiresApi(M) public class IconCache {
+
+	public static final int CAPACITY = 32;	// Must be consistent across SDK versions
+
+	/**
+	 * @return the content digest of the icon, or 0 if not supported for this icon. Computed at most once per Icon instance,
+	 *         thus icon must not be mutated (e.g. {@link Icon#setTint(int)}) after being set to notification.
+	 */
+	public static long digest(final @Nullable Icon icon) {
+		if (icon == null || sMethodGetType == null) return 0;
+		final Long cached = sDigests.get(icon);
+		if (cached != null) return cached;
+		final long digest = computeDigest(icon);
+		sDigests.put(icon, digest);
+		return digest;
+	}
+
+	private static long computeDigest(final Icon icon) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			final int type = (int) sMethodGetType.invoke(icon);
+			digest.update((byte) type);
+			switch (type) {
+			case TYPE_BITMAP:
+			case TYPE_ADAPTIVE_BITMAP:
+				final Bitmap bitmap = (Bitmap) sMethodGetBitmap.invoke(icon);
+				final ByteBuffer header = ByteBuffer.allocate(12).putInt(bitmap.getWidth()).putInt(bitmap.getHeight()).putInt(bitmap.getConfig().ordinal());
+				digest.update(header.array());
+				final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+				bitmap.copyPixelsToBuffer(pixels);		// Throws IllegalStateException for hardware bitmap
+				digest.update(pixels.array());
+				break;
+			case TYPE_RESOURCE:
+				digest.update(((String) sMethodGetResPackage.invoke(icon)).getBytes(StandardCharsets.UTF_8));
+				digest.update(ByteBuffer.allocate(4).putInt((int) sMethodGetResId.invoke(icon)).array());
+				break;
+			case TYPE_DATA:
+				digest.update((byte[]) sMethodGetDataBytes.invoke(icon), (int) sMethodGetDataOffset.invoke(icon), (int) sMethodGetDataLength.invoke(icon));
+				break;
+			case TYPE_URI:
+				digest.update(((String) sMethodGetUriString.invoke(icon)).getBytes(StandardCharsets.UTF_8));
+				break;
+			default: return 0;
+			}
+			final ColorStateList tint = (ColorStateList) sFieldTintList.get(icon);
+			if (tint != null) digest.update(tint.toString().getBytes(StandardCharsets.UTF_8));
+			final PorterDuff.Mode tint_mode = (PorterDuff.Mode) sFieldTintMode.get(icon);
+			if (tint_mode != null) digest.update((byte) tint_mode.ordinal());
+
+			final long value = ByteBuffer.wrap(digest.digest()).getLong();
+			return value != 0 ? value : 1;		// 0 is reserved
+		} catch (final ReflectiveOperationException | RuntimeException | NoSuchAlgorithmException e) {
+			Log.d(TAG, "Unable to digest icon: " + icon, e);
+			return 0;
+		}
+	}
+
+	/** Check whether the icon with given digest is already shipped, thus can be referenced. The entry is refreshed if shipped. */
+	public boolean isShipped(final long digest) {
+		if (! mEnabled || digest == 0) return false;
+		final Entry entry = mEntries.get(digest);
+		return entry != null && entry.shipped;
+	}
+
+	/** Called when the icon is written back (decorator side) or received (engine side). */
+	public void onShipped(final long digest, final Icon icon) {
+		if (mEnabled && digest != 0) mEntries.put(digest, new Entry(icon, true));
+	}
+
+	public @Nullable Icon get(final long digest) {
+		final Entry entry = mEntries.get(digest);
+		return entry != null ? entry.icon : null;
+	}
+
+	/** Drop all entries, and enable referencing only if the other side is capable. */
+	public void reset(final boolean enabled) {
+		mEntries.evictAll();
+		mEnabled = enabled;
+	}
+
+	/** Decorator side should use smaller capacity than {@link #CAPACITY}, as margin for refreshes not mirrored by engine (e.g. abandoned write-back). */
+	public IconCache(final int capacity) { mEntries = new LruCache<>(capacity); }
+
+	private final LruCache<Long, Entry> mEntries;
+	private volatile boolean mEnabled;
+
+	private static class Entry {
+		Entry(final Icon icon, final boolean shipped) { this.icon = icon; this.shipped = shipped; }
+		final Icon icon;
+		final boolean shipped;
+	}
+
+	private static final Map<Icon, Long> sDigests = Collections.synchronizedMap(new WeakHashMap<>());	// Icon has no equals(), thus by identity
+
+	// Constants and members hidden in Icon before Android P
+	private static final int TYPE_BITMAP = 1;
+	private static final int TYPE_RESOURCE = 2;
+	private static final int TYPE_DATA = 3;
+	private static final int TYPE_URI = 4;
+	private static final int TYPE_ADAPTIVE_BITMAP = 5;
+
+	private static final @Nullable Method sMethodGetType;
+	private static Method sMethodGetBitmap, sMethodGetResPackage, sMethodGetResId, sMethodGetDataBytes, sMethodGetDataOffset, sMethodGetDataLength, sMethodGetUriString;
+	private static Field sFieldTintList, sFieldTintMode;
+	static {
+		Method method = null;
+		try {
+			sMethodGetBitmap = Icon.class.getMethod("getBitmap");
+			sMethodGetResPackage = Icon.class.getMethod("getResPackage");
+			sMethodGetResId = Icon.class.getMethod("getResId");
+			sMethodGetDataBytes = Icon.class.getMethod("getDataBytes");
+			sMethodGetDataOffset = Icon.class.getMethod("getDataOffset");
+			sMethodGetDataLength = Icon.class.getMethod("getDataLength");
+			sMethodGetUriString = Icon.class.getMethod("getUriString");
+			(sFieldTintList = Icon.class.getDeclaredField("mTintList")).setAccessible(true);
+			(sFieldTintMode = Icon.class.getDeclaredField("mTintMode")).setAccessible(true);
+			method = Icon.class.getMethod("getType");		// Last one as indicator of availability
+		} catch (final NoSuchMethodException | NoSuchFieldException e) {
+			Log.w(TAG, "Incompatible ROM: Icon", e);
+		}
+		sMethodGetType = method;
+	}
+
+	private static final String TAG = "Nevo.IconCache";
+}
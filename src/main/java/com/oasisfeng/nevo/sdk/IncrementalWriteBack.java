@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.RestrictTo;
+
+import static android.os.Build.VERSION_CODES.M;
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Carrier of the incremental write-back of {@link MutableStatusBarNotification}, for delivery out of the "inout" reply of apply().
+ *
+ * The write-back is kept as raw parcel data by the receiver, to be read back into its own instance by {@link #readBackInto(MutableStatusBarNotification)}.
+ *
+ * This is an internal class, NEVER use it in decorator project.
+ */
+@RestrictTo(LIBRARY) @RequiresApi(M) public class IncrementalWriteBack implements Parcelable {
+
+	/** Read back the carried write-back into the given notification, which must be the counterpart of the evolved one. */
+	public void readBackInto(final MutableStatusBarNotification target) {
+		if (mData == null) throw new IllegalStateException("Not received from parcel");
+		mData.setDataPosition(0);
+		target.readFromParcel(mData);
+	}
+
+	public void recycle() {
+		if (mData != null) mData.recycle();
+	}
+
+	@Override public void writeToParcel(final Parcel out, final int flags) {
+		final int position_size = out.dataPosition();
+		out.writeInt(0);		// Placeholder for size
+		final int start = out.dataPosition();
+		if (mEvolved != null) mEvolved.writeToParcel(out, flags | PARCELABLE_WRITE_RETURN_VALUE);
+		else if (mData != null) out.appendFrom(mData, 0, mData.dataSize());
+		final int end = out.dataPosition();
+		out.setDataPosition(position_size);
+		out.writeInt(end - start);
+		out.setDataPosition(end);
+	}
+
+	@Override public int describeContents() { return 0; }
+
+	/** The evolved notification must have incremental write-back allowed. */
+	IncrementalWriteBack(final MutableStatusBarNotification evolved) { mEvolved = evolved; mData = null; }
+
+	private IncrementalWriteBack(final Parcel in) {
+		final int size = in.readInt(), start = in.dataPosition();
+		mData = Parcel.obtain();
+		mData.appendFrom(in, start, size);
+		in.setDataPosition(start + size);
+		mEvolved = null;
+	}
+
+	private final MutableStatusBarNotification mEvolved;
+	private final Parcel mData;
+
+	public static final Parcelable.Creator<IncrementalWriteBack> CREATOR = new Parcelable.Creator<IncrementalWriteBack>() {
+		@Override public IncrementalWriteBack createFromParcel(final Parcel in) { return new IncrementalWriteBack(in); }
+		@Override public IncrementalWriteBack[] newArray(final int size) { return new IncrementalWriteBack[size]; }
+	};
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.support.annotation.RestrictTo;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Executor running tasks in parallel across different keys, but strictly in submission order for the same key.
+ *
+ * Tasks of the same key are chained instead of blocking a worker, so a busy key never occupies more than one worker at a time.
+ */
+@RestrictTo(LIBRARY) class KeyedSerialExecutor {
+
+	void execute(final String key, final Runnable task) {
+		synchronized (mPendingTasks) {
+			final ArrayDeque<Runnable> pending = mPendingTasks.get(key);
+			if (pending != null) {		// Key is busy, run after the preceding ones.
+				pending.add(task);
+				return;
+			}
+			mPendingTasks.put(key, new ArrayDeque<>());
+		}
+		mExecutor.execute(() -> runAndChainNext(key, task));
+	}
+
+	/**
+	 * Execute the task after all preceding tasks of every key given, with succeeding tasks of these keys held until its completion.
+	 * Keys already reached are held without occupying a worker, while waiting for the rest.
+	 */
+	void execute(final Collection<String> keys, final Runnable task) {
+		final Set<String> distinct_keys = new LinkedHashSet<>(keys);
+		if (distinct_keys.isEmpty()) { mExecutor.execute(task); return; }
+		final Barrier barrier = new Barrier(distinct_keys, task);
+		int reached = 0;
+		synchronized (mPendingTasks) {
+			for (final String key : distinct_keys) {
+				final ArrayDeque<Runnable> pending = mPendingTasks.get(key);
+				if (pending != null) pending.add(barrier);		// Reached when it becomes the next of this key, see chainNext().
+				else {
+					mPendingTasks.put(key, new ArrayDeque<>());
+					reached ++;
+				}
+			}
+		}
+		barrier.reach(reached);
+	}
+
+	/** Execute the task in order and wait for its completion, with exception thrown in task re-thrown to the caller. */
+	void executeAndWait(final String key, final Runnable task) {
+		await(submit(key, task));
+	}
+
+	FutureTask<Void> submit(final String key, final Runnable task) {
+		final FutureTask<Void> future = new FutureTask<>(task, null);
+		execute(key, future);
+		return future;
+	}
+
+	/** Wait for the completion of submitted task, with exception thrown in task re-thrown to the caller. */
+	static void await(final FutureTask<Void> future) {
+		boolean interrupted = false;
+		try {
+			while (true) try {
+				future.get();
+				return;
+			} catch (final InterruptedException e) {
+				interrupted = true;		// The task is already queued, keep waiting to preserve the order and outcome.
+			} catch (final ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				if (cause instanceof Error) throw (Error) cause;
+				throw new IllegalStateException(cause);
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runAndChainNext(final String key, final Runnable task) {
+		try {
+			task.run();
+		} catch (final RuntimeException e) {
+			Log.e(TAG, "Error running task for " + key, e);
+		} finally {		// Always chain, even upon Error, otherwise the key is stuck forever.
+			chainNext(key);
+		}
+	}
+
+	private void chainNext(final String key) {
+		final Runnable next;
+		synchronized (mPendingTasks) {
+			final ArrayDeque<Runnable> pending = mPendingTasks.get(key);
+			next = pending.poll();
+			if (next == null) mPendingTasks.remove(key);
+		}
+		if (next instanceof Barrier) ((Barrier) next).reach(1);		// The key is kept busy until the barrier task is finished.
+		else if (next != null) mExecutor.execute(() -> runAndChainNext(key, next));	// Re-submit instead of looping, to be fair with other keys.
+	}
+
+	/** Placeholder in pending tasks of multiple keys, running the task once reached in all of them. */
+	private class Barrier implements Runnable {
+
+		void reach(final int count) {
+			if (count > 0 && mRemaining.addAndGet(- count) == 0) mExecutor.execute(this);
+		}
+
+		@Override public void run() {
+			try {
+				mTask.run();
+			} catch (final RuntimeException e) {
+				Log.e(TAG, "Error running task for " + mKeys, e);
+			} finally {
+				for (final String key : mKeys) chainNext(key);
+			}
+		}
+
+		Barrier(final Set<String> keys, final Runnable task) { mKeys = keys; mTask = task; mRemaining = new AtomicInteger(keys.size()); }
+
+		private final Set<String> mKeys;
+		private final Runnable mTask;
+		private final AtomicInteger mRemaining;
+	}
+
+	KeyedSerialExecutor(final String name, final int workers) {
+		if (workers <= 0) throw new IllegalArgumentException("workers must be positive");
+		final AtomicInteger count = new AtomicInteger();
+		mExecutor = new ThreadPoolExecutor(workers, workers, 30, SECONDS, new LinkedBlockingQueue<>(),
+				runnable -> new Thread(runnable, name + "#" + count.incrementAndGet()));
+		mExecutor.allowCoreThreadTimeOut(true);		// Idle workers are released, no explicit shutdown is needed.
+	}
+
+	private final ThreadPoolExecutor mExecutor;
+	private final Map<String, ArrayDeque<Runnable>> mPendingTasks = new HashMap<>();
+
+	private static final String TAG = "Nevo.KeyedExecutor";
+}
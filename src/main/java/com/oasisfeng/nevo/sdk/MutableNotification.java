@@ -16,13 +16,18 @@
 
 package com.oasisfeng.nevo.sdk;
 
+import android.annotation.SuppressLint;
 import android.app.Notification;
 import android.graphics.drawable.Icon;
 import android.os.Parcel;
+import android.support.annotation.CheckResult;
 import android.support.annotation.Keep;
 import android.support.annotation.RequiresApi;
 import android.support.annotation.RestrictTo;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static android.os.Build.VERSION_CODES.O;
 import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 
@@ -62,6 +67,144 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 	/** @see Notification.Builder#addPerson(String) */
 	public abstract void addPerson(final String uri);
 
+	/**
+	 * Start a transaction of mutations, collected without touching this notification until {@link Editor#commit()}, which applies them
+	 * in one pass. Typical usage:
+	 * <pre>
+	 * final MutableNotification.Editor editor = n.edit();
+	 * try {
+	 *     editor.setGroup(...).addAction(...).addAction(...);
+	 *     ...		// May bail out halfway
+	 *     editor.commit();
+	 * } finally { editor.rollback(); }		// No-op if already committed</pre>
+	 */
+	@CheckResult public Editor edit() { return new Editor(this); }
+
+	/** Mutations in transaction, see {@link #edit()}. Each editor can only be committed once, and not thread-safe. */
+	public static class Editor {
+
+		/** @see MutableNotification#setGroup(String) */
+		public Editor setGroup(final String groupKey) { set(CHANGE_GROUP).mGroup = groupKey; return this; }
+		/** @see MutableNotification#setSortKey(String) */
+		public Editor setSortKey(final String sortKey) { set(CHANGE_SORT_KEY).mSortKey = sortKey; return this; }
+		/** @see MutableNotification#setSmallIcon(Icon) */
+		public Editor setSmallIcon(final Icon icon) { set(CHANGE_SMALL_ICON).mSmallIcon = icon; return this; }
+		/** @see MutableNotification#setLargeIcon(Icon) */
+		public Editor setLargeIcon(final Icon icon) { set(CHANGE_LARGE_ICON).mLargeIcon = icon; return this; }
+		/** @see MutableNotification#setTimeoutAfter(long) */
+		public Editor setTimeoutAfter(final long durationMs) { set(CHANGE_TIMEOUT_AFTER).mTimeoutAfter = durationMs; return this; }
+		/** @see MutableNotification#setChannelId(String) */
+		@RequiresApi(O) public Editor setChannelId(final String channelId) { set(CHANGE_CHANNEL_ID).mChannelId = channelId; return this; }
+		/** @see MutableNotification#setGroupAlertBehavior(int) */
+		@RequiresApi(O) public Editor setGroupAlertBehavior(final int behavior) { set(CHANGE_GROUP_ALERT_BEHAVIOR).mGroupAlertBehavior = behavior; return this; }
+
+		/** @see MutableNotification#addAction(Action) */
+		public Editor addAction(final Action action) {
+			checkOpen();
+			if (mActions == null) mActions = new ArrayList<>();
+			mActions.add(action);
+			return this;
+		}
+
+		/** @see MutableNotification#addPerson(String) */
+		public Editor addPerson(final String uri) {
+			checkOpen();
+			if (mPeople == null) mPeople = new ArrayList<>();
+			mPeople.add(uri);
+			return this;
+		}
+
+		/**
+		 * Apply all the collected mutations. Actions and people are merged into a single new array each, and icons are only processed once
+		 * with their final value, no matter how many times they were set in this transaction.
+		 *
+		 * @throws IllegalStateException if already committed or rolled back.
+		 */
+		@SuppressLint("NewApi")		// Changes of Android O+ only fields are never collected on earlier versions.
+		public void commit() {
+			checkOpen();
+			mClosed = true;
+			final MutableNotification n = mNotification;
+			final Action[] actions = mActions != null ? mergeActions(n.actions, mActions) : null;	// Prepare before any mutation
+			final String[] people = mPeople != null ? mergePeople(n.extras.getStringArray(EXTRA_PEOPLE), mPeople) : null;
+
+			final int changes = mChanges;
+			if ((changes & CHANGE_GROUP) != 0) n.setGroup(mGroup);
+			if ((changes & CHANGE_SORT_KEY) != 0) n.setSortKey(mSortKey);
+			if ((changes & CHANGE_SMALL_ICON) != 0) n.setSmallIcon(mSmallIcon);
+			if ((changes & CHANGE_LARGE_ICON) != 0) n.setLargeIcon(mLargeIcon);
+			if ((changes & CHANGE_TIMEOUT_AFTER) != 0) n.setTimeoutAfter(mTimeoutAfter);
+			if ((changes & CHANGE_CHANNEL_ID) != 0) n.setChannelId(mChannelId);
+			if ((changes & CHANGE_GROUP_ALERT_BEHAVIOR) != 0) n.setGroupAlertBehavior(mGroupAlertBehavior);
+			if (actions != null) n.actions = actions;
+			if (people != null) n.extras.putStringArray(EXTRA_PEOPLE, people);
+		}
+
+		/** Discard all the collected mutations, leaving the notification intact. No-op if already committed or rolled back. */
+		public void rollback() {
+			if (mClosed) return;
+			mClosed = true;
+			mChanges = 0;
+			mActions = null;
+			mPeople = null;
+			mSmallIcon = mLargeIcon = null;
+		}
+
+		/** Existent action with the same title will be replaced, in the same way as {@link MutableNotification#addAction(Action)} */
+		private static Action[] mergeActions(final Action[] existent, final List<Action> added) {
+			final List<Action> merged = new ArrayList<>((existent != null ? existent.length : 0) + added.size());
+			if (existent != null) for (final Action action : existent) merged.add(action);
+			next: for (final Action action : added) {
+				for (int i = 0; i < merged.size(); i ++) {
+					final CharSequence title = merged.get(i).title;
+					if (title == null || ! title.equals(action.title)) continue;
+					merged.set(i, action);
+					continue next;
+				}
+				merged.add(action);
+			}
+			return merged.toArray(new Action[merged.size()]);
+		}
+
+		private static String[] mergePeople(final String[] existent, final List<String> added) {
+			final int count = existent != null ? existent.length : 0;
+			final String[] people = new String[count + added.size()];
+			if (existent != null) System.arraycopy(existent, 0, people, 0, count);
+			for (int i = 0; i < added.size(); i ++) people[count + i] = added.get(i);
+			return people;
+		}
+
+		private Editor set(final int change) {
+			checkOpen();
+			mChanges |= change;
+			return this;
+		}
+
+		private void checkOpen() {
+			if (mClosed) throw new IllegalStateException("Already committed or rolled back");
+		}
+
+		Editor(final MutableNotification n) { mNotification = n; }
+
+		private final MutableNotification mNotification;
+		private int mChanges;		// Bits of CHANGE_XXX
+		private String mGroup, mSortKey, mChannelId;
+		private Icon mSmallIcon, mLargeIcon;
+		private long mTimeoutAfter;
+		private int mGroupAlertBehavior;
+		private List<Action> mActions;
+		private List<String> mPeople;
+		private boolean mClosed;
+
+		private static final int CHANGE_GROUP = 1;
+		private static final int CHANGE_SORT_KEY = 1 << 1;
+		private static final int CHANGE_SMALL_ICON = 1 << 2;
+		private static final int CHANGE_LARGE_ICON = 1 << 3;
+		private static final int CHANGE_TIMEOUT_AFTER = 1 << 4;
+		private static final int CHANGE_CHANNEL_ID = 1 << 5;
+		private static final int CHANGE_GROUP_ALERT_BEHAVIOR = 1 << 6;
+	}
+
 	@Override public String toString() { return "Mutable" + super.toString(); }
 
 	@RestrictTo(LIBRARY) MutableNotification() {}
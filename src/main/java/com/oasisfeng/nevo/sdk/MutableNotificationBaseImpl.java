@@ -21,6 +21,7 @@ import android.graphics.drawable.Icon;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.support.annotation.RestrictTo;
 
@@ -41,6 +42,8 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 	static final String EXTRA_SORT_KEY = "nevo.sort";
 	static final String EXTRA_ICON_SMALL = "nevo.icon";
 	static final String EXTRA_ICON_LARGE = "nevo.icon.large";
+	static final String EXTRA_ICON_SMALL_REF = "nevo.icon.ref";			// Content digest of icon already shipped, see IconCache
+	static final String EXTRA_ICON_LARGE_REF = "nevo.icon.large.ref";
 	static final String EXTRA_TIMEOUT_AFTER = "nevo.timeout";
 	static final String EXTRA_APP_CHANNEL = "nevo.channel";
 	static final String EXTRA_GROUP_ALERT_BEHAVIOR = "nevo.group.alert";
@@ -54,11 +57,11 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 		else extras.putString(EXTRA_SORT_KEY, sortKey);
 	}
 	@Override public void setSmallIcon(final Icon icon) {
-		if (icon == super.getSmallIcon()) extras.remove(EXTRA_ICON_SMALL);	// Unfortunately, class Icon has no equals().
-		else extras.putParcelable(EXTRA_ICON_SMALL, icon);
+		if (icon == super.getSmallIcon()) extras.remove(EXTRA_ICON_SMALL);
+		else extras.putParcelable(EXTRA_ICON_SMALL, icon);		// Content is only compared in write-back, see substituteIcon().
 	}
 	@Override public void setLargeIcon(final Icon icon) {
-		if (icon == super.getLargeIcon()) extras.remove(EXTRA_ICON_LARGE);	// Unfortunately, class Icon has no equals().
+		if (icon == super.getLargeIcon()) extras.remove(EXTRA_ICON_LARGE);
 		else extras.putParcelable(EXTRA_ICON_LARGE, icon);
 	}
 	/** Currently only supported on Android O+. TODO: If you want it supported on earlier Android versions, please file a feature request on issue tracker */
@@ -100,6 +103,7 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 
 	// Delegated getters
 
+	String getOriginalGroup() { return super.getGroup(); }
 	@Override public String getGroup() { return extras.containsKey(EXTRA_GROUP) ? extras.getString(EXTRA_GROUP) : super.getGroup(); }
 	@Override public String getSortKey() { return extras.containsKey(EXTRA_SORT_KEY) ? extras.getString(EXTRA_SORT_KEY) : super.getSortKey(); }
 	@Override public Icon getSmallIcon() { return extras.containsKey(EXTRA_ICON_SMALL) ? extras.getParcelable(EXTRA_ICON_SMALL) : super.getSmallIcon(); }
@@ -107,21 +111,21 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 	@Override public String getChannelId() { return extras.containsKey(EXTRA_APP_CHANNEL) ? extras.getString(EXTRA_APP_CHANNEL) : super.getChannelId(); }
 	@Override public int getGroupAlertBehavior() { return extras.containsKey(EXTRA_GROUP_ALERT_BEHAVIOR) ? extras.getInt(EXTRA_GROUP_ALERT_BEHAVIOR) : super.getGroupAlertBehavior(); }
 
-	// RemoteViews are intentionally always shallowly copied, to reduce cost.
-	private static void copyMutableFields(final Notification source, final Notification dest) {
+	/** RemoteViews are intentionally always shallowly copied, to reduce cost. Other members are deeply copied only if requested. */
+	private static void copyMutableFields(final Notification source, final Notification dest, final boolean deep) {
 		dest.when = source.when;
 		dest.number = source.number;
 		dest.contentIntent = source.contentIntent;
 		dest.deleteIntent = source.deleteIntent;
 		dest.fullScreenIntent = source.fullScreenIntent;
-		dest.tickerText = source.tickerText == null ? null : source.tickerText.toString();
+		dest.tickerText = source.tickerText == null || ! deep ? source.tickerText : source.tickerText.toString();
 		dest.contentView = source.contentView;
 		dest.iconLevel = source.iconLevel;
 		dest.sound = source.sound;
 		//noinspection deprecation, due to still being used in NotificationRecord.calculateAttributes() when "audioAttributes" is absennt.
 		dest.audioStreamType = source.audioStreamType;
 		dest.audioAttributes = source.audioAttributes;
-		dest.vibrate = source.vibrate == null ? null : source.vibrate.clone();
+		dest.vibrate = source.vibrate == null || ! deep ? source.vibrate : source.vibrate.clone();
 		dest.ledARGB = source.ledARGB;
 		dest.ledOnMS = source.ledOnMS;
 		dest.ledOffMS = source.ledOffMS;
@@ -129,14 +133,16 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 		dest.flags = source.flags;
 		dest.priority = source.priority;
 		dest.category = source.category;
-		dest.extras = source.extras == null ? null : new Bundle(source.extras);
+		dest.extras = source.extras == null || ! deep ? source.extras : new Bundle(source.extras);
 
-		if (source.actions != null) {		// Notification.Action is actually mutable due to Action.getExtras().
+		if (source.actions != null && ! deep) dest.actions = source.actions.clone();
+		else if (source.actions != null) {		// Notification.Action is actually mutable due to Action.getExtras().
 			dest.actions = new Action[source.actions.length];
 			for (int i = 0; i < source.actions.length; i ++) {
 				final Action action = source.actions[i];
 				if (action != null) {
-					action.getExtras().size();		// Un-parcel extras before cloning, to ensure identity equaling of values for later comparison.
+					// Un-parcel extras (usually small) before cloning, to ensure identity equaling of values for comparison in remote implementation.
+					action.getExtras().size();
 					dest.actions[i] = action.clone();
 				}
 			}
@@ -145,11 +151,99 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 		dest.bigContentView = source.bigContentView;
 		dest.headsUpContentView = source.headsUpContentView;
 		dest.visibility = source.visibility;
-		dest.publicVersion = source.publicVersion == null ? null : source.publicVersion.clone();
+		dest.publicVersion = source.publicVersion == null || ! deep ? source.publicVersion : source.publicVersion.clone();
 		dest.color = source.color;
 	}
 
-	Notification getOriginalMutableKeeper() { return mOriginalMutableKeeper; }
+	Notification getOriginalMutableKeeper() { ensureOriginalMutableKeeper(); return mOriginalMutableKeeper; }
+
+	/**
+	 * Take the snapshot of original values, which must be done before this instance is exposed for mutation.
+	 * Postponed until then, since most notifications are never touched by decorator (e.g. filtered out by package or template).
+	 */
+	void ensureOriginalMutableKeeper() {
+		if (mOriginalMutableKeeper != null) return;
+		copyMutableFields(this, mOriginalMutableKeeper = new Notification(), true);	// Extras still in parceled form are copied as is.
+	}
+
+	/**
+	 * Write back incrementally with remote implementation, with extras trimmed to changed keys only, to save the cost of comparing
+	 * and parceling the (usually large) untouched extras. Bundle is final and cannot track its mutations, thus extras never accessed
+	 * (still in parceled form) are treated as untouched. Otherwise, if the original copy is still in parceled form, the parceled forms are
+	 * compared first to avoid un-parceling it. Failing that, values not identical are compared by {@link ValueComparison}.
+	 */
+	void writeBackToParcel(final Parcel out, final int flags) {
+		writeBackToParcel(out, flags, false, null, false);
+	}
+
+	/**
+	 * @param abandon write back as untouched regardless of mutations, thus keep the notification intact in engine.
+	 * @param icons the cache of icons shipped through the decorator connection (mirrored by engine), or null to never reference icons.
+	 * @param ship whether to mark the icons written in full as shipped, only if the write-back is certain to be received by engine.
+	 */
+	void writeBackToParcel(final Parcel out, final int flags, final boolean abandon, final @Nullable IconCache icons, final boolean ship) {
+		final boolean untouched = abandon || mOriginalMutableKeeper == null;
+		final Notification original;
+		if (untouched) copyMutableFields(this, original = new Notification(), false);	// Shallow copy is enough to indicate nothing changed.
+		else original = mOriginalMutableKeeper;
+		final Bundle extras = this.extras, original_extras = original.extras;
+		if (untouched) {		// Skip the un-parceling of extras.
+			this.extras = new Bundle();
+			original.extras = new Bundle();
+		} else if (extras != null && original_extras != null) {
+			if (ValueComparison.isParcelled(extras)		// Never accessed, the original copy is made from the same parceled form.
+					|| ValueComparison.isParcelled(original_extras) && ValueComparison.equalToParcelled(extras, original_extras)) {
+				this.extras = new Bundle();
+				original.extras = new Bundle();
+			} else {
+				this.extras = new Bundle(extras);
+				original.extras = new Bundle(original_extras);
+				for (final String key : extras.keySet()) {
+					if (! original_extras.containsKey(key)) continue;
+					final Object value = extras.get(key), original_value = original_extras.get(key);
+					if (value == original_value || ValueComparison.equal(original_value, value)) {		// Value comparison only if not identical
+						this.extras.remove(key);
+						original.extras.remove(key);
+					}
+				}
+			}
+		}
+		try {
+			final Bundle written = this.extras != extras ? this.extras : null;	// Substitute only in the trimmed copy, never in our own extras.
+			final Icon small_icon = written != null ? written.getParcelable(EXTRA_ICON_SMALL) : null,
+					large_icon = written != null ? written.getParcelable(EXTRA_ICON_LARGE) : null;
+			final long small_icon_digest = small_icon == null ? 0 : substituteIcon(written, EXTRA_ICON_SMALL, EXTRA_ICON_SMALL_REF, small_icon, super.getSmallIcon(), icons);
+			final long large_icon_digest = large_icon == null ? 0 : substituteIcon(written, EXTRA_ICON_LARGE, EXTRA_ICON_LARGE_REF, large_icon, super.getLargeIcon(), icons);
+			RemoteImplementation.writeBackToParcel(out, flags, this, original);
+			if (icons != null && ship) {
+				if (small_icon_digest != 0) icons.onShipped(small_icon_digest, small_icon);
+				if (large_icon_digest != 0) icons.onShipped(large_icon_digest, large_icon);
+			}
+		} finally {
+			this.extras = extras;
+			original.extras = original_extras;
+		}
+	}
+
+	/**
+	 * Drop the icon from written extras if identical in content to the original one (Icon has no equals()), or replace it with
+	 * reference if already shipped. The instance itself always keeps the real icon.
+	 *
+	 * @return the digest of icon to be shipped in full, or 0 if not.
+	 */
+	private static long substituteIcon(final Bundle written, final String key, final String ref_key, final Icon icon, final @Nullable Icon original,
+									   final @Nullable IconCache icons) {
+		final long digest = IconCache.digest(icon);
+		if (digest == 0) return 0;
+		if (digest == IconCache.digest(original)) {
+			written.remove(key);
+			return 0;
+		}
+		if (icons == null || ! icons.isShipped(digest)) return digest;
+		written.remove(key);
+		written.putLong(ref_key, digest);
+		return 0;
+	}
 
 	/** For derived class only. */
 	MutableNotificationBaseImpl(final Notification original) { mOriginalMutableKeeper = original; }
@@ -157,16 +251,17 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 	/** For derived class only. */
 	MutableNotificationBaseImpl(final Notification original, final Parcel parcel) { super(parcel); mOriginalMutableKeeper = original; }
 
-	/** This instance keeps the original immutable values and exposes mutable members, whose original values are kept in an internal Notification instance. */
+	/**
+	 * This instance keeps the original immutable values and exposes mutable members, whose original values are kept in an internal Notification instance,
+	 * lazily copied by {@link #ensureOriginalMutableKeeper()}.
+	 */
 	private MutableNotificationBaseImpl(final Parcel parcel) {
 		super(parcel);
 		//noinspection deprecation
 		icon = 0;		// Notification.readFromParcelImpl() fills this field, which we never need.
-		extras.size();	// Un-parcel extras before copying, to ensure identity equaling of values for later comparison.
-		copyMutableFields(this, mOriginalMutableKeeper = new Notification());
 	}
 
-	private final transient Notification mOriginalMutableKeeper;	// The instance with original mutable field values (intact).
+	private transient Notification mOriginalMutableKeeper;		// The instance with original mutable field values (intact), null until exposed.
 
 	public static final Creator<MutableNotificationBaseImpl> CREATOR = new Parcelable.Creator<MutableNotificationBaseImpl>() {
 		public MutableNotificationBaseImpl createFromParcel(final Parcel parcel) { return new MutableNotificationBaseImpl(parcel); }
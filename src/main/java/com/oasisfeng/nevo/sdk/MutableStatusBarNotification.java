@@ -17,9 +17,11 @@
 package com.oasisfeng.nevo.sdk;
 
 import android.app.Notification;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.service.notification.StatusBarNotification;
 import android.support.annotation.Keep;
@@ -45,7 +47,14 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
  */
 @Keep @RequiresApi(M) public class MutableStatusBarNotification extends StatusBarNotification {
 
-	@Override public MutableNotification getNotification() { return (MutableNotification) super.getNotification(); }
+	@Override public MutableNotification getNotification() {
+		final MutableNotification n = (MutableNotification) super.getNotification();
+		if (n instanceof MutableNotificationBaseImpl) ((MutableNotificationBaseImpl) n).ensureOriginalMutableKeeper();	// Exposed for mutation
+		return n;
+	}
+
+	/** Read-only access without taking the snapshot of original values (as {@link #getNotification()} does), for local matching. */
+	Notification peekNotification() { return super.getNotification(); }
 
 	public void setTag(final @Nullable String tag) {
 		if (Objects.equals(tag, mTag)) return;
@@ -59,18 +68,42 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 		updateKey();
 	}
 
+	/** Invalidate the cached key, which is lazily rebuilt on demand. */
 	private void updateKey() {
-		if (! Objects.equals(mTag, super.getTag()) || mId != super.getId()) {		// Initial PID and score has no contribution to generated key.
-			final StatusBarNotification sbn = new StatusBarNotification(getPackageName(), null, getId(), getTag(),
-					getUid(this), 0, 0, super.getNotification(), getUser(), getPostTime());
-			if (SDK_INT >= N) sbn.setOverrideGroupKey(getOverrideGroupKey());
-			mKey = sbn.getKey();
-		} else mKey = null;
+		mKeyStale = true;
+	}
+
+	/** Same format as StatusBarNotification.key(), built in place with user and package reused from the original key. */
+	private @Nullable String buildKey() {
+		if (Objects.equals(mTag, super.getTag()) && mId == super.getId()) return null;		// Initial PID and score has no contribution to generated key.
+		final String original_key = super.getKey();		// "user|pkg|id|tag|uid[|override_group]"
+		final int prefix_end = original_key.indexOf('|', original_key.indexOf('|') + 1) + 1;
+		final StringBuilder key = sKeyBuilder.get();
+		key.setLength(0);
+		key.append(original_key, 0, prefix_end).append(mId).append('|').append(mTag).append('|').append(mUid);
+		if (SDK_INT >= N) {
+			final String override_group = getOverrideGroupKey();
+			if (override_group != null && isOriginallyGroupSummary()) key.append('|').append(override_group);
+		}
+		return key.toString();
+	}
+
+	/** Equivalent to the hidden Notification.isGroupSummary(), which checks the original group regardless of mutation. */
+	private boolean isOriginallyGroupSummary() {
+		final Notification n = super.getNotification();
+		final String group = n instanceof MutableNotificationBaseImpl ? ((MutableNotificationBaseImpl) n).getOriginalGroup() : n.getGroup();
+		return group != null && (n.flags & Notification.FLAG_GROUP_SUMMARY) != 0;
 	}
 
 	@Override public String getTag() { return mTag; }
 	@Override public int getId() { return mId; }
-	@Override public String getKey() { return mKey != null ? mKey : super.getKey(); }
+	@Override public String getKey() {
+		if (mKeyStale) {
+			mKey = buildKey();
+			mKeyStale = false;
+		}
+		return mKey != null ? mKey : super.getKey();
+	}
 	public String getOriginalKey() { return super.getKey(); }
 	public String getOriginalTag() { return super.getTag(); }
 	public int getOriginalId() { return super.getId(); }
@@ -78,18 +111,20 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 	@RequiresApi(N) @Override public void setOverrideGroupKey(final String override_group_key) {	// Use extra to keep initial value.
 		final String value_before = getOverrideGroupKey();
 		if (Objects.equals(override_group_key, value_before)) return;
-		final Bundle extras = super.getNotification().extras;
+		final Bundle extras = getNotification().extras;
 		if (! extras.containsKey(EXTRA_ORIGINAL_OVERRIDE_GROUP)) {
 			if (value_before != null) extras.putString(EXTRA_ORIGINAL_OVERRIDE_GROUP, value_before);
 		} else if (Objects.equals(override_group_key, extras.getString(EXTRA_ORIGINAL_OVERRIDE_GROUP)))
 			extras.remove(EXTRA_ORIGINAL_OVERRIDE_GROUP);
 		super.setOverrideGroupKey(override_group_key);
+		updateKey();
 	}
 
 	@Override public String toString() {
 		final StringBuilder string = new StringBuilder("StatusBarNotificationEvo(key=");
 		string.append(getOriginalKey());
-		if (mKey != null) string.append(" -> ").append(mKey);
+		final String key = getKey();
+		if (! key.equals(getOriginalKey())) string.append(" -> ").append(key);
 		string.append(')');
 		return string.toString();
 	}
@@ -99,20 +134,48 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 		super(pkg, opPkg, id, tag, uid, initialPid, 0/* unused */, notification, user, postTime);
 		mTag = tag;
 		mId = id;
+		mUid = uid;
 	}
 
 	@RestrictTo(LIBRARY) static String getOpPkg(final StatusBarNotification sbn) { return sbn.getPackageName(); }	// TODO
 	@RestrictTo(LIBRARY) static int getInitialPid(final StatusBarNotification sbn) { return 0; }					// TODO
 	@RestrictTo(LIBRARY) protected static int getUid(final StatusBarNotification sbn) {
+		if (sbn instanceof MutableStatusBarNotification) return ((MutableStatusBarNotification) sbn).mUid;	// Captured upon construction
 		if (sMethodGetUid != null)
 			try { return (int) sMethodGetUid.invoke(sbn); } catch (final Exception ignored) {}
 		if (sFieldUid != null)
 			try { return (int) sFieldUid.get(sbn); } catch (final IllegalAccessException ignored) {}
-		// TODO: PackageManager.getPackageUid()
-		Log.e(TAG, "Incompatible ROM: StatusBarNotification");
+		final PackageManager pm = sPackageManager;
+		if (pm != null) try {
+			final int app_uid = SDK_INT >= N ? pm.getPackageUid(sbn.getPackageName(), 0) : pm.getApplicationInfo(sbn.getPackageName(), 0).uid;
+			return getUserId(sbn.getUser()) * PER_USER_RANGE + app_uid % PER_USER_RANGE;
+		} catch (final PackageManager.NameNotFoundException ignored) {}		// Not installed in current user, nothing more we can do.
+		if (! sIncompatibilityLogged) {
+			sIncompatibilityLogged = true;
+			Log.e(TAG, "Incompatible ROM: StatusBarNotification");
+		}
 		return 0;
 	}
 
+	/** Equivalent to the hidden UserHandle.getIdentifier() */
+	private static int getUserId(final UserHandle user) {
+		final Parcel parcel = Parcel.obtain();
+		try {
+			user.writeToParcel(parcel, 0);
+			parcel.setDataPosition(0);
+			return parcel.readInt();
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	/** For the fallback of {@link #getUid(StatusBarNotification)} */
+	@RestrictTo(LIBRARY) static void setPackageManager(final PackageManager pm) { sPackageManager = pm; }
+
+	private static PackageManager sPackageManager;
+	private static boolean sIncompatibilityLogged;
+	private static final int PER_USER_RANGE = 100000;		// UserHandle.PER_USER_RANGE
+
 	private static final @Nullable Method sMethodGetUid;
 	private static final @Nullable Field sFieldUid;
 	static {
@@ -128,14 +191,39 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 		sFieldUid = field;
 	}
 
+	/**
+	 * Get the remaining time (in milliseconds) before the deadline of current decoration, set by Nevolution engine to avoid delaying the alert.
+	 * Heavyweight decorator should check this to degrade gracefully (e.g. skip expensive processing), since all mutations made by the decorator
+	 * will be abandoned if not finished before deadline.
+	 *
+	 * @return the remaining time, 0 if deadline has passed, or {@link Long#MAX_VALUE} if no deadline is set (e.g. engine with API version before 5).
+	 */
+	public long getRemainingTimeBudget() {
+		return mDeadline == 0 ? Long.MAX_VALUE : Math.max(mDeadline - SystemClock.elapsedRealtime(), 0);
+	}
+
+	/** @param deadline in {@link SystemClock#elapsedRealtime()}, or 0 for no deadline. */
+	void setDeadline(final long deadline) { mDeadline = deadline; }
+
+	/** Abandon all mutations in incremental write-back. */
+	void abandonMutations() { mAbandoned = true; }
+
 	@RestrictTo(LIBRARY) public void setAllowIncrementalWriteBack() { mAllowIncWriteBack = true; }
 
+	/**
+	 * Reference icons already shipped through the decorator connection in write-back, and mark icons written in full as shipped
+	 * only if {@code ship}, that is, the write-back is certainly received by engine (the synchronous reply of apply()).
+	 */
+	void setIconCache(final IconCache icons, final boolean ship) { mIconCache = icons; mShipIcons = ship; }
+
+	/** Items of inout list are written back by AIDL without {@link #PARCELABLE_WRITE_RETURN_VALUE}, thus allowed regardless of flags. */
+	void setAllowIncrementalWriteBackAsListItem() { mAllowIncWriteBack = mWriteBackAsListItem = true; }
+
 	@Override public void writeToParcel(final Parcel out, final int flags) {
-		if (mAllowIncWriteBack && (flags & PARCELABLE_WRITE_RETURN_VALUE) != 0) {
+		if (mAllowIncWriteBack && (mWriteBackAsListItem || (flags & PARCELABLE_WRITE_RETURN_VALUE) != 0)) {
 			writeMutableFieldsToParcel(out);
 			// Use remote implementation to ensure the consistency of parceling across SDK versions.
-			final MutableNotification mutable = getNotification();
-			RemoteImplementation.writeBackToParcel(out, flags, mutable, ((MutableNotificationBaseImpl) mutable).getOriginalMutableKeeper());
+			((MutableNotificationBaseImpl) super.getNotification()).writeBackToParcel(out, flags | PARCELABLE_WRITE_RETURN_VALUE, mAbandoned, mIconCache, mShipIcons);
 		} else {	// Store original values in extras if mutated, and write to parcel as StatusBarNotification with mutated values.
 			final Bundle extras = super.getNotification().extras;
 			final boolean tag_mutated, id_mutated;
@@ -160,7 +248,7 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 			out.writeString(tag);
 		} else out.writeInt(0);
 
-		out.writeInt(getUid(this));
+		out.writeInt(mUid);
 		out.writeInt(getInitialPid(this));
 		super.getNotification().writeToParcel(out, flags);
 		getUser().writeToParcel(out, flags);
@@ -185,9 +273,11 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 	private MutableStatusBarNotification(final String pkg, final String opPkg, final int id, final String tag, final int uid, final int initialPid,
 										 final MutableNotification n, final UserHandle user, final long postTime, final String override_group) {
 		super(pkg, opPkg, extractOriginal(n, EXTRA_ORIGINAL_ID, id), extractOriginal(n, EXTRA_ORIGINAL_TAG, tag), uid, initialPid, 0, n, user, postTime);
+		mUid = uid;
 		setTag(tag);
 		setId(id);
 		if (SDK_INT >= N) super.setOverrideGroupKey(override_group);
+		updateKey();
 	}
 
 	private static <T> T extractOriginal(final Notification n, final String key, final T value) {
@@ -201,6 +291,12 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 	}
 
 	private void writeMutableFieldsToParcel(final Parcel out) {
+		if (mAbandoned) {	// Same as unchanged
+			out.writeInt(0);
+			out.writeInt(super.getId());
+			if (SDK_INT >= N) out.writeInt(0);
+			return;
+		}
 		if (mTag == null ? super.getTag() != null : ! mTag.equals(super.getTag())) {
 			if (mTag != null) {
 				out.writeInt(1);
@@ -255,9 +351,19 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 	// Mutable fields
 	private String mTag;
 	private int mId;
+	private final int mUid;
 	private transient String mKey;
+	private transient boolean mKeyStale;
 	private transient boolean mAllowIncWriteBack;
-
+	private transient boolean mWriteBackAsListItem;
+	private transient @Nullable IconCache mIconCache;
+	private transient boolean mShipIcons;
+	private transient boolean mAbandoned;
+	private transient long mDeadline;
+
+	private static final ThreadLocal<StringBuilder> sKeyBuilder = new ThreadLocal<StringBuilder>() {
+		@Override protected StringBuilder initialValue() { return new StringBuilder(); }	// ThreadLocal.withInitial() requires API 26
+	};
 	private static final String EXTRA_ORIGINAL_TAG = "nevo.tag";
 	private static final String EXTRA_ORIGINAL_ID = "nevo.id";
 	@VisibleForTesting static final String EXTRA_ORIGINAL_OVERRIDE_GROUP = "nevo.group.override";
@@ -19,17 +19,21 @@ package com.oasisfeng.nevo.sdk;
 import android.annotation.SuppressLint;
 import android.app.NotificationChannel;
 import android.app.Service;
+import android.content.ComponentName;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
 import android.os.BadParcelableException;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.NetworkOnMainThreadException;
+import android.os.Parcel;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.service.notification.StatusBarNotification;
 import android.support.annotation.CallSuper;
@@ -39,12 +43,31 @@ import android.support.annotation.RequiresApi;
 import android.support.annotation.RestrictTo;
 import android.util.Log;
 
+import com.oasisfeng.nevo.decorator.IApplyCallback;
 import com.oasisfeng.nevo.decorator.INevoDecorator;
 import com.oasisfeng.nevo.engine.INevoController;
 
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static android.content.pm.PackageManager.GET_META_DATA;
 import static android.content.pm.PackageManager.GET_SIGNATURES;
 import static android.content.pm.PackageManager.SIGNATURE_MATCH;
 import static android.os.Build.VERSION_CODES.M;
@@ -67,6 +90,52 @@ import static java.util.Collections.singletonList;
 	/** Optional meta-data key within the &lt;service&gt; tag, to indicate the target packages (separated by comma) of the app-specific decorator */
 	public static final String META_KEY_PACKAGES = "packages";
 
+	/**
+	 * Optional meta-data key within the &lt;service&gt; tag, referencing (by "android:resource") the XML resource of declarative rules,
+	 * for simple static mapping (e.g. setting group, sort key or channel by package, channel, template or title).
+	 * Rules are validated upon binding and executed directly in Nevolution engine, without the cost of IPC.
+	 * {@link #apply(MutableStatusBarNotification)} is only called for notifications not handled by any rule.
+	 *
+	 * <pre>
+	 * &lt;rules&gt;
+	 *     &lt;rule package="com.example.chat" template="MessagingStyle" title="^Group: " group="chat_groups" groupAlertBehavior="summary" /&gt;
+	 *     &lt;rule package="com.example.shop" channel="promotion,ads" sortKey="z" /&gt;
+	 * &lt;/rules&gt;
+	 * </pre>
+	 *
+	 * Criteria (all optional): "package", "channel" and "category" (separated by comma), "template" (e.g. "BigTextStyle"),
+	 * "title" (regular expression) and "extra" (keys separated by comma, all required to be present in extras).
+	 * Actions: "group", "sortKey", "channelId" and "groupAlertBehavior" ("all", "summary" or "children"). Only the first matching rule is applied.
+	 */
+	public static final String META_KEY_RULES = "rules";
+
+	/**
+	 * Optional meta-data key within the &lt;service&gt; tag, referencing (by "android:resource") the XML resource of interest filters,
+	 * to narrow down notifications dispatched to this decorator beyond {@link #META_KEY_PACKAGES}. Filters are evaluated by Nevolution engine
+	 * before dispatching, thus only notifications matching any of the filters are passed to {@link #apply(MutableStatusBarNotification)}.
+	 *
+	 * <pre>
+	 * &lt;filters&gt;
+	 *     &lt;filter template="MessagingStyle" /&gt;
+	 *     &lt;filter package="com.example.chat" category="msg" extra="android.remoteInputHistory" /&gt;
+	 * &lt;/filters&gt;
+	 * </pre>
+	 *
+	 * Criteria of filter are the same as {@link #META_KEY_RULES rules}. Use {@link NotificationFilters} to verify them locally.
+	 */
+	public static final String META_KEY_FILTERS = "filters";
+
+	/**
+	 * Optional meta-data key within the &lt;service&gt; tag, to declare the projection (separated by comma) of notification read by this decorator,
+	 * consisting of extras keys (e.g. "android.title,android.text") and heavy fields ("contentView", "bigContentView", "headsUpContentView"
+	 * and "publicVersion"). Nevolution engine (with API version 5+) then dispatches notifications with other extras and heavy fields
+	 * stripped, to reduce the cost of IPC. Changes made by this decorator are still merged into the full notification.
+	 * Actions and {@link android.app.Notification#EXTRA_PEOPLE people} are always kept, for the helpers of {@link MutableNotification} to merge into.
+	 *
+	 * <p>Extras and fields outside the projection must NOT be mutated. Note that {@link #apply(List) batch apply} always gets the full notification.
+	 */
+	public static final String META_KEY_PROJECTION = "projection";
+
 	/** Valid constant values for {@link android.app.Notification#EXTRA_TEMPLATE} */
 	public static final String TEMPLATE_BIG_TEXT	= "android.app.Notification$BigTextStyle";
 	public static final String TEMPLATE_INBOX		= "android.app.Notification$InboxStyle";
@@ -84,11 +153,73 @@ import static java.util.Collections.singletonList;
 	 * For example, sticky notification ({@link android.app.Notification#FLAG_ONGOING_EVENT FLAG_ONGOING_EVENT}
 	 * or {@link android.app.Notification#FLAG_FOREGROUND_SERVICE FLAG_FOREGROUND_SERVICE}) is not modifiable at present.
 	 *
+	 * <p>Nevolution engine may set a deadline for decoration, all mutations are abandoned if not finished in time.
+	 * Check {@link MutableStatusBarNotification#getRemainingTimeBudget()} to degrade gracefully in heavyweight decorator.
+	 *
 	 * @param evolving the incoming notification evolved by preceding decorators and to be evolved by this decorator,
 	 *                 or an already evolved notification (with or without this decorator).
 	 */
 	@Keep protected void apply(final MutableStatusBarNotification evolving) {}
 
+	/**
+	 * Apply this decorator to a batch of notifications posted in a burst, only called by Nevolution engine with API version 5+.
+	 * The default implementation simply calls {@link #apply(MutableStatusBarNotification)} for each of them.
+	 *
+	 * <p>Failure is isolated per notification: if the decoration fails for some of them, replace the corresponding entries with null,
+	 * those notifications will then be kept intact by Nevolution engine, while the remaining ones are still evolved.
+	 * If the deadline is exceeded when the whole batch is finished, all of them are kept intact.
+	 *
+	 * @param evolving the incoming notifications, see {@link #apply(MutableStatusBarNotification)} for details of each.
+	 */
+	@Keep protected void apply(final List<MutableStatusBarNotification> evolving) {
+		final KeyedSerialExecutor dispatcher = mDispatcher;		// Decorate in parallel if enabled by setDispatchParallelism().
+		@SuppressWarnings("unchecked") final FutureTask<Void>[] tasks = dispatcher != null ? new FutureTask[evolving.size()] : null;
+		for (int i = 0; i < evolving.size(); i ++) {
+			final MutableStatusBarNotification sbn = evolving.get(i);
+			if (sbn == null || sbn.getRemainingTimeBudget() == 0) continue;		// Mutations after deadline will be abandoned anyway.
+			if (tasks != null) tasks[i] = dispatcher.submit(sbn.getOriginalKey(), () -> apply(sbn));
+			else try {
+				apply(sbn);
+			} catch (final RuntimeException e) {
+				Log.e(TAG, "Error running apply() for " + sbn.getKey(), e);
+				evolving.set(i, null);
+			}
+		}
+		if (tasks != null) for (int i = 0; i < tasks.length; i ++) if (tasks[i] != null) try {
+			KeyedSerialExecutor.await(tasks[i]);
+		} catch (final RuntimeException e) {
+			Log.e(TAG, "Error running apply() for " + evolving.get(i).getKey(), e);
+			evolving.set(i, null);
+		}
+	}
+
+	/**
+	 * Asynchronous variant of {@link #apply(MutableStatusBarNotification)}, only called by Nevolution engine with API version 5+ if overridden.
+	 * If overridden, it is used instead of other variants of apply(), so that slow decoration (I/O, contact lookup and etc) never stalls the pipeline.
+	 *
+	 * <p>The decoration can be finished on any thread, by calling {@link Completion#complete()} (or {@link Completion#fail(Throwable)}) exactly once.
+	 * The evolving notification must not be accessed after that.
+	 *
+	 * <p>The default implementation simply calls {@link #apply(MutableStatusBarNotification)} and completes immediately.
+	 */
+	@Keep protected void applyAsync(final MutableStatusBarNotification evolving, final Completion completion) {
+		try {
+			apply(evolving);
+		} catch (final RuntimeException e) {
+			completion.fail(e);
+			return;
+		}
+		completion.complete();
+	}
+
+	/** Completion of asynchronous decoration, see {@link #applyAsync(MutableStatusBarNotification, Completion)} */
+	public interface Completion {
+		/** Finish the decoration, with all mutations made to the evolving notification so far. */
+		void complete();
+		/** Abandon the decoration, the evolving notification will be kept intact by Nevolution engine. */
+		void fail(Throwable error);
+	}
+
 	/** Called when connected by Nevolution engine. Override this method to perform initial process. */
 	@Keep protected void onConnected() {}
 
@@ -112,6 +243,46 @@ import static java.util.Collections.singletonList;
 	 */
 	@Keep protected void onNotificationRemoved(final StatusBarNotification notification, final int reason) {}
 
+	/**
+	 * Called when notifications are removed in a burst (e.g. "clear all", or the originating app being force-stopped or uninstalled),
+	 * only by Nevolution engine with API version 5+. Earlier engines always call the single-item variants.
+	 * The default implementation simply calls {@link #onNotificationRemoved(StatusBarNotification, int)} for each removal with notification,
+	 * or {@link #onNotificationRemoved(String, int)} for each removal with key only.
+	 *
+	 * <p>If not overridden, the single-item variants are dispatched the same way as individual removals. If overridden without the single-item
+	 * variants, individual removals (including all removals from engine with API version before 5) are also delivered here as singleton list.
+	 * If parallel dispatch is enabled, it is ordered against other callbacks of every key involved.
+	 * The notifications are only provided if {@link #onNotificationRemoved(StatusBarNotification, int)} is also overridden.
+	 */
+	@Keep protected void onNotificationsRemoved(final List<Removal> removals) {
+		for (final Removal removal : removals) {
+			final StatusBarNotification notification = removal.getNotification();
+			if (notification != null) onNotificationRemoved(notification, removal.getReason());
+			else onNotificationRemoved(removal.getKey(), removal.getReason());
+		}
+	}
+
+	/** Removal of notification in batch, see {@link #onNotificationsRemoved(List)} */
+	public static final class Removal {
+
+		/** @return the key of notification removed, see {@link #onNotificationRemoved(String, int)} */
+		public String getKey() { return mKey; }
+		/** @return the notification removed, or null if not provided by Nevolution engine. */
+		public @Nullable StatusBarNotification getNotification() { return mNotification; }
+		/** @return see REASON_XXX constants in {@link android.service.notification.NotificationListenerService}, always 0 before Android O. */
+		public int getReason() { return mReason; }
+
+		@Override public String toString() { return "Removal{" + mKey + ", reason=" + mReason + "}"; }
+
+		Removal(final String key, final @Nullable StatusBarNotification notification, final int reason) {
+			mKey = key; mNotification = notification; mReason = reason;
+		}
+
+		private final String mKey;
+		private final @Nullable StatusBarNotification mNotification;
+		private final int mReason;
+	}
+
 	/**
 	 * Retrieve historic notifications posted with the given key (including the incoming one without decoration at the last).
 	 * The number of notifications kept in archive is undefined.
@@ -119,8 +290,15 @@ import static java.util.Collections.singletonList;
 	 * Decorator permission restriction applies.
 	 */
 	protected final List<StatusBarNotification> getArchivedNotifications(final String key, final int limit) {
+		final NotificationCache cache = mNotificationCache;
+		final List<StatusBarNotification> cached = cache != null ? cache.getArchived(key, limit) : null;
+		if (cached != null) return new ArrayList<>(cached);
+		final long generation = cache != null ? cache.generation() : 0;		// Captured before query, to never cache stale results.
 		try {
-			return mController.getNotifications(mWrapper, TYPE_ARCHIVED, singletonList(key), limit, null);
+			final List<StatusBarNotification> notifications = mController.getNotifications(mWrapper, TYPE_ARCHIVED, singletonList(key), limit, null);
+			if (cache != null && notifications != null && getUncacheableKeys(singletonList(key), notifications).isEmpty())
+				cache.putArchived(key, limit, notifications, generation);
+			return notifications;
 		} catch (final RemoteException e) {
 			Log.w(TAG, "Error retrieving archived notifications: " + key, e);
 			return Collections.emptyList();
@@ -136,12 +314,102 @@ import static java.util.Collections.singletonList;
 	 * Decorator permission restriction applies.
 	 */
 	protected final List<StatusBarNotification> getLatestNotifications(final List<String> keys) {
-		try {
+		final NotificationCache cache = mNotificationCache;
+		if (cache == null) try {
 			return mController.getNotifications(mWrapper, TYPE_LATEST, keys, 0, null);
 		} catch (final RemoteException e) {
 			Log.w(TAG, "Error retrieving notifications", e);
 			return Collections.emptyList();
 		}
+
+		final List<StatusBarNotification> results = new ArrayList<>(keys.size());
+		final List<String> missing_keys = new ArrayList<>(keys.size());
+		for (final String key : keys) {
+			final List<StatusBarNotification> cached = cache.getLatest(key);
+			if (cached != null) results.addAll(cached);
+			else missing_keys.add(key);
+		}
+		final long generation = cache.generation();		// Captured before query, to never cache stale results.
+		if (! missing_keys.isEmpty()) try {
+			final List<StatusBarNotification> notifications = mController.getNotifications(mWrapper, TYPE_LATEST, missing_keys, 0, null);
+			if (notifications != null) {
+				final Set<String> uncacheable_keys = getUncacheableKeys(missing_keys, notifications);
+				if (uncacheable_keys.isEmpty()) cache.putLatest(missing_keys, notifications, generation);
+				else {
+					final List<String> cacheable_keys = new ArrayList<>(missing_keys);
+					cacheable_keys.removeAll(uncacheable_keys);
+					final List<StatusBarNotification> cacheable = new ArrayList<>(notifications.size());
+					for (final StatusBarNotification sbn : notifications) if (! uncacheable_keys.contains(sbn.getKey())) cacheable.add(sbn);
+					if (! cacheable_keys.isEmpty()) cache.putLatest(cacheable_keys, cacheable, generation);
+				}
+				results.addAll(notifications);
+			}
+		} catch (final RemoteException e) {
+			Log.w(TAG, "Error retrieving notifications", e);
+		}
+		return results;
+	}
+
+	private Set<String> getUncacheableKeys(final List<String> keys, final List<StatusBarNotification> results) {
+		if (mSupportedApiVersion < 5) return Collections.emptySet();	// Rules and filters are evaluated locally in apply(), after invalidation.
+		return getUncacheableKeys(keys, results, mRules, mFilters);
+	}
+
+	/**
+	 * Since API 5, notifications rejected by the declared filters or handled by the declared rules are never dispatched to decorator by engine,
+	 * thus their updates never invalidate the cache. Keys without any result are also included if rules or filters are declared,
+	 * since whether their upcoming notifications will be dispatched is unknown.
+	 *
+	 * @return keys whose results should not be cached
+	 */
+	static Set<String> getUncacheableKeys(final List<String> keys, final List<StatusBarNotification> results,
+										  final @Nullable DecoratorRules rules, final @Nullable NotificationFilters filters) {
+		if (rules == null && filters == null) return Collections.emptySet();
+		final Set<String> dispatched_keys = new HashSet<>(keys.size()), undispatched_keys = new HashSet<>();
+		for (final StatusBarNotification sbn : results) {
+			final boolean dispatched = (filters == null || filters.matches(sbn)) && (rules == null || ! rules.matches(sbn));
+			(dispatched ? dispatched_keys : undispatched_keys).add(sbn.getKey());
+		}
+		dispatched_keys.removeAll(undispatched_keys);		// Any undispatched one among notifications sharing the key
+		final Set<String> uncacheable_keys = new HashSet<>(keys);
+		uncacheable_keys.removeAll(dispatched_keys);
+		return uncacheable_keys;
+	}
+
+	/**
+	 * Opt-in to cache the results of {@link #getArchivedNotifications(String, int)} and {@link #getLatestNotifications(List)} locally,
+	 * to avoid repeated IPC for the same notifications, typically when merging conversations in {@link #apply(MutableStatusBarNotification)}.
+	 * Entries are invalidated upon incoming decoration or removal of the same key. Removal events are thus always requested from engine
+	 * while the cache is enabled, even if {@link #onNotificationRemoved(String, int)} is not overridden. Enable it before connection
+	 * (typically in {@link #onCreate()}), since capabilities are declared to engine upon connection.
+	 *
+	 * <p>Notifications rejected by the declared filters or handled by the declared rules are never cached, since their updates are not
+	 * dispatched to decorator (thus never invalidate the cache) by engine with API version 5 or above.
+	 *
+	 * <p>Beware: The notifications returned from cache are shared, DO NOT mutate them.
+	 *
+	 * @param max_keys max number of notification keys to cache, or 0 to disable the cache (default).
+	 */
+	protected final void setNotificationCacheSize(final int max_keys) {
+		if (max_keys < 0) throw new IllegalArgumentException("max_keys must not be negative");
+		mNotificationCache = max_keys > 0 ? new NotificationCache(max_keys) : null;
+	}
+
+	/** Warm up the notification cache (if enabled) with latest notifications of given keys in one batch, typically called in {@link #onConnected()}. */
+	protected final void prefetchNotifications(final List<String> keys) {
+		if (mNotificationCache != null) getLatestNotifications(keys);
+	}
+
+	/** @return the number of hits in notification cache, or 0 if not enabled. */
+	protected final int getNotificationCacheHitCount() {
+		final NotificationCache cache = mNotificationCache;
+		return cache != null ? cache.hitCount() : 0;
+	}
+
+	/** @return the number of misses in notification cache, or 0 if not enabled. */
+	protected final int getNotificationCacheMissCount() {
+		final NotificationCache cache = mNotificationCache;
+		return cache != null ? cache.missCount() : 0;
 	}
 
 	/**
@@ -208,31 +476,159 @@ import static java.util.Collections.singletonList;
 		}
 	}
 
+	/** Batch version of {@link #cancelNotification(String)}, performed in one transaction. */
+	protected final void cancelNotifications(final List<String> keys) {
+		try {
+			performNotificationActions(ACTION_CANCEL, keys, null);
+		} catch (final RemoteException e) {
+			Log.w(TAG, "Error canceling notifications: " + keys, e);
+		}
+	}
+
+	/** Batch version of {@link #reviveNotification(String)}, performed in one transaction. */
+	protected final void reviveNotifications(final List<String> keys) {
+		try {
+			performNotificationActions(ACTION_REVIVE, keys, null);
+		} catch (final RemoteException e) {
+			Log.w(TAG, "Error reviving notifications: " + keys, e);
+		}
+	}
+
+	/**
+	 * Batch version of {@link #recastNotification(String, Bundle)}, performed in one transaction.
+	 *
+	 * @param fillInExtras additional extras to fill in each of the notifications being recast.
+	 */
+	protected final void recastNotifications(final List<String> keys, final @Nullable Bundle fillInExtras) {
+		try {
+			performNotificationActions(ACTION_RECAST, keys, fillInExtras);
+		} catch (final RemoteException e) {
+			Log.w(TAG, "Error recasting notifications: " + keys, e);
+		}
+	}
+
+	/** Batch version of {@link #snoozeNotification(String, long)}, performed in one transaction. */
+	protected final void snoozeNotifications(final List<String> keys, final long duration) {
+		try {
+			final Bundle bundle = new Bundle();
+			bundle.putLong(KEY_DURATION, duration);
+			performNotificationActions(ACTION_SNOOZE, keys, bundle);
+		} catch (final RemoteException e) {
+			Log.w(TAG, "Error snoozing notifications: " + keys, e);
+		}
+	}
+
+	private void performNotificationActions(final int action, final List<String> keys, final @Nullable Bundle args) throws RemoteException {
+		if (keys.isEmpty()) return;
+		if (mSupportedApiVersion >= 5) mController.performNotificationActions(mWrapper, action, keys, args);
+		else for (final String key : keys) mController.performNotificationAction(mWrapper, action, key, args);	// Fallback for older engines
+	}
+
 	/**
 	 * Returns the notification channel settings for a given channel id in targeted app.
 	 * If specified package is not targeted by this decorator, {@link SecurityException} will be thrown.
 	 *
+	 * <p>Channels are cached once queried, and kept up to date by {@link #createNotificationChannels(String, UserHandle, List)}
+	 * and {@link #deleteNotificationChannel(String, UserHandle, String)}, but changes made by user or app afterwards are not reflected
+	 * until reconnected by Nevolution engine.
+	 *
 	 * @see android.app.NotificationManager#getNotificationChannel(String)
 	 */
 	@RequiresApi(O) protected final @Nullable NotificationChannel getNotificationChannel(final String pkg, final UserHandle user, final String channel) {
 		if (mSupportedApiVersion < 4) return null;
+		final NotificationChannel cached = getChannelCache().get(pkg, user, channel);
+		if (cached != null) return cached;
 		try {
 			final List<NotificationChannel> channels = mController.getNotificationChannels(mWrapper, pkg, singletonList(channel), bundleIfNeeded(user));
-			return channels == null || channels.isEmpty() ? null : channels.get(0);
+			if (channels == null || channels.isEmpty()) return null;
+			getChannelCache().onQueried(pkg, user, channels);
+			return channels.get(0);
 		} catch (final RemoteException e) {
 			Log.w(TAG, "Error querying notification channel in " + pkg + ": " + channel, e);
 			return null;
 		}
 	}
 
+	/**
+	 * Returns the notification channel settings for given channel ids in targeted app, in one batch.
+	 * If specified package is not targeted by this decorator, {@link SecurityException} will be thrown.
+	 *
+	 * @return channels mapped by ID, absent channels are not included.
+	 * @see #getNotificationChannel(String, UserHandle, String)
+	 */
+	@RequiresApi(O) protected final Map<String, NotificationChannel> getNotificationChannels(final String pkg, final UserHandle user, final List<String> channels) {
+		final Map<String, NotificationChannel> result = new HashMap<>(channels.size());
+		if (mSupportedApiVersion < 4) return result;
+		final NotificationChannelCache cache = getChannelCache();
+		final List<String> missing = new ArrayList<>(channels.size());
+		for (final String id : channels) {
+			final NotificationChannel cached = cache.get(pkg, user, id);
+			if (cached != null) result.put(id, cached);
+			else missing.add(id);
+		}
+		if (missing.isEmpty()) return result;
+		try {
+			final List<NotificationChannel> queried = mController.getNotificationChannels(mWrapper, pkg, missing, bundleIfNeeded(user));
+			if (queried != null) {
+				cache.onQueried(pkg, user, queried);
+				for (final NotificationChannel channel : queried) if (channel != null) result.put(channel.getId(), channel);
+			}
+		} catch (final RemoteException e) {
+			Log.w(TAG, "Error querying notification channels in " + pkg + ": " + missing, e);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the notification channel settings in multiple targeted apps, in one transaction if supported by Nevolution engine (API version 5+).
+	 * If any of the specified packages is not targeted by this decorator, {@link SecurityException} will be thrown.
+	 *
+	 * @param channels channel ids to query in each package, or null for all channels.
+	 * @return channels mapped by package and then ID, absent channels are not included.
+	 */
+	@RequiresApi(O) protected final Map<String, Map<String, NotificationChannel>> getNotificationChannelsOfPackages(
+			final List<String> pkgs, final UserHandle user, final @Nullable List<String> channels) {
+		final Map<String, Map<String, NotificationChannel>> result = new HashMap<>(pkgs.size());
+		if (mSupportedApiVersion < 4) return result;
+		if (mSupportedApiVersion < 5) {		// Fallback to one transaction per package
+			if (channels != null) for (final String pkg : pkgs) result.put(pkg, getNotificationChannels(pkg, user, channels));
+			else Log.w(TAG, "Querying all channels of packages is not supported by installed version of Nevolution.");
+			return result;
+		}
+		try {
+			@SuppressWarnings("unchecked") final Map<String, List<NotificationChannel>> queried
+					= mController.getNotificationChannelsOfPackages(mWrapper, pkgs, channels, bundleIfNeeded(user));
+			if (queried == null) return result;
+			final NotificationChannelCache cache = getChannelCache();
+			for (final Map.Entry<String, List<NotificationChannel>> entry : queried.entrySet()) {
+				final String pkg = entry.getKey();
+				final Map<String, NotificationChannel> pkg_channels = new HashMap<>();
+				if (entry.getValue() != null) {
+					cache.onQueried(pkg, user, entry.getValue());
+					for (final NotificationChannel channel : entry.getValue()) if (channel != null) pkg_channels.put(channel.getId(), channel);
+				}
+				result.put(pkg, pkg_channels);
+			}
+		} catch (final RemoteException e) {
+			Log.w(TAG, "Error querying notification channels in " + pkgs, e);
+		}
+		return result;
+	}
+
 	/**
 	 * Create {@link NotificationChannel} for targeted app. If specified package is not targeted by this decorator, {@link SecurityException} will be thrown.
 	 *
+	 * <p>Channels already created by this decorator with identical settings are skipped, thus it is cheap to call it idempotently.
+	 *
 	 * @see android.app.NotificationManager#createNotificationChannel(NotificationChannel)
 	 */
 	@RequiresApi(O) protected final void createNotificationChannels(final String pkg, final UserHandle user, final List<NotificationChannel> channels) {
+		final NotificationChannelCache cache = getChannelCache();
+		final List<NotificationChannel> to_create = cache.filterCreated(pkg, user, channels);
+		if (to_create.isEmpty()) return;
 		try {
-			mController.createNotificationChannels(mWrapper, pkg, channels, bundleIfNeeded(user));
+			mController.createNotificationChannels(mWrapper, pkg, to_create, bundleIfNeeded(user));
+			cache.onCreated(pkg, user, to_create);
 		} catch (final RemoteException e) {
 			Log.w(TAG, "Error creating notification channels for " + pkg + ": " + channels, e);
 		}
@@ -253,11 +649,27 @@ import static java.util.Collections.singletonList;
 		if (mSupportedApiVersion < 4) return;
 		try {
 			mController.deleteNotificationChannel(mWrapper, pkg, channel, bundleIfNeeded(user));
+			getChannelCache().onDeleted(pkg, user, channel);
 		} catch (final RemoteException e) {
 			Log.w(TAG, "Error deleting notification channel for " + pkg + ": " + channel, e);
 		}
 	}
 
+	/**
+	 * Opt-in to dispatch callbacks ({@link #apply(MutableStatusBarNotification)}, {@link #onNotificationRemoved(String, int)} and etc)
+	 * to a pool of worker threads, in parallel across different notifications but strictly in order for the same key,
+	 * thus no locking is required between callbacks for the same notification. Typically called in {@link #onCreate()}.
+	 *
+	 * <p>Callbacks of apply() are ordered by {@link MutableStatusBarNotification#getOriginalKey() original key}, while callbacks of
+	 * onNotificationRemoved() are ordered by the key given, which may be different from original key if the tag or ID is altered.
+	 *
+	 * @param workers max number of worker threads, or 0 to run callbacks on binder threads directly. (default)
+	 */
+	protected final void setDispatchParallelism(final int workers) {
+		if (workers < 0) throw new IllegalArgumentException("workers must not be negative");
+		mDispatcher = workers > 0 ? new KeyedSerialExecutor(TAG, workers) : null;
+	}
+
 	/**
 	 * Get the API version of Nevolution SDK supported by Nevolution engine installed on this device.
 	 * If the supported API version in user's device is lowed than API version of SDK used in your project, some new APIs may not work.
@@ -268,15 +680,92 @@ import static java.util.Collections.singletonList;
 		return mSupportedApiVersion;
 	}
 
-	@CallSuper @Override public IBinder onBind(final Intent intent) {
-		for (Class<?> clazz = getClass(); clazz != NevoDecoratorService.class; clazz = clazz.getSuperclass()) {
-			detectDerivedMethod(FLAG_DECORATION_AWARE, clazz, "apply", MutableStatusBarNotification.class);
-			detectDerivedMethod(FLAG_REMOVAL_AWARE_KEY_ONLY, clazz, "onNotificationRemoved", String.class, int.class);
-			detectDerivedMethod(FLAG_REMOVAL_AWARE, clazz, "onNotificationRemoved", StatusBarNotification.class, int.class);
+	/**
+	 * Subscribe to the stream of notification events seen by this decorator: posted or updated (after decoration by this decorator)
+	 * and removed, delivered in batch to the consumer on a dedicated worker thread, until {@link NotificationEventStream#close() closed}
+	 * or this service is destroyed.
+	 * Suitable for aggregation (digest, summary, analytics and etc) without overriding the callbacks.
+	 *
+	 * <p>Only notifications dispatched to this decorator are seen. Since API 5, engine never dispatches notifications rejected by the
+	 * declared filters or handled by the declared rules, thus they are absent from the stream (while their removals may still be seen).
+	 * Declare no filters or rules for notifications to be aggregated.
+	 *
+	 * <p>Subscribe in {@link #onCreate()} or {@link #onConnected()}, since notifications and removals are requested from engine upon connection.
+	 * Notifications are snapshotted by parceling for each event, only when there is any subscriber.
+	 *
+	 * @param capacity max number of events buffered, see {@link NotificationEventStream.OverflowPolicy} for the behavior when full.
+	 */
+	protected final NotificationEventStream subscribe(final int capacity, final NotificationEventStream.OverflowPolicy policy,
+													   final NotificationEventStream.Consumer consumer) {
+		final NotificationEventStream stream = new NotificationEventStream(capacity, policy, consumer);
+		stream.start();
+		mStreams.add(stream);
+		return stream;
+	}
+
+	/** Get a copy (not atomic as a whole) of runtime statistics (latencies, parcel sizes and exceptions) of this decorator, also dumped by "dumpsys activity service". */
+	protected final DecoratorStats getDecoratorStats() {
+		return mStats.snapshot();
+	}
+
+	/**
+	 * Opt-in to record trace events of the decoration pipeline (bind, connection, apply, removal, parcel sizes and calls to engine)
+	 * in a fixed-size ring buffer, also emitted as sections to {@link android.os.Trace systrace}. Typically called in {@link #onCreate()},
+	 * since calls to engine are only traced for connection established after that.
+	 *
+	 * <p>Recorded events can be exported in Chrome trace event format (viewable in Perfetto UI) by {@link #exportTrace(Writer)}, or by
+	 * "adb shell dumpsys activity service &lt;decorator component&gt; trace".
+	 *
+	 * @param capacity max number of recent events kept (rounded up to power of 2), or 0 to stop recording. (default)
+	 */
+	protected final void setTraceRecording(final int capacity) {
+		if (capacity < 0) throw new IllegalArgumentException("capacity must not be negative");
+		mTrace = capacity > 0 ? new TraceRecorder(capacity) : null;
+	}
+
+	/** Export recorded trace events in Chrome trace event format (JSON). Nothing is written if not {@link #setTraceRecording(int) recording}. */
+	protected final void exportTrace(final Writer writer) throws IOException {
+		final TraceRecorder trace = mTrace;
+		if (trace != null) trace.export(writer);
+	}
+
+	@Override protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+		if (args != null && args.length > 0 && "trace".equals(args[0])) {
+			try { exportTrace(writer); } catch (final IOException e) { writer.println("Error exporting trace: " + e); }
+			return;
 		}
+		writer.println("Nevolution decorator (SDK API " + getResources().getInteger(R.integer.nevo_api_version) + ", engine API " + mSupportedApiVersion + "):");
+		mStats.dump(writer, "  ");
+	}
+
+	@CallSuper @Override public void onCreate() {
+		super.onCreate();
+		RemoteImplementation.initializeInBackground(getApplicationContext());
+	}
+
+	@CallSuper @Override public void onDestroy() {
+		for (final NotificationEventStream stream : mStreams) stream.close();
+		mStreams.clear();
+		mStreamKeys.clear();
+		super.onDestroy();
+	}
+
+	@CallSuper @Override public IBinder onBind(final Intent intent) {
+		MutableStatusBarNotification.setPackageManager(getApplicationContext().getPackageManager());
+		mFlags = getCapabilityFlags(getClass());
+		if (! mMetadataLoaded) loadMetadata();
+		final TraceRecorder trace = mTrace;
+		if (trace != null) trace.instant(TraceRecorder.EVENT_BIND, null, 0);
 		return mWrapper == null ? mWrapper = new INevoDecoratorWrapper() : mWrapper;
 	}
 
+	@RequiresApi(O) private NotificationChannelCache getChannelCache() {
+		synchronized (this) {
+			if (mChannelCache == null) mChannelCache = new NotificationChannelCache();
+			return mChannelCache;
+		}
+	}
+
 	private static Bundle bundleIfNeeded(final UserHandle user) {
 		if (user == null || Process.myUserHandle().equals(user)) return null;
 		final Bundle bundle = new Bundle();
@@ -284,10 +773,89 @@ import static java.util.Collections.singletonList;
 		return bundle;
 	}
 
-	private void detectDerivedMethod(final int flag, final Class<?> clazz, final String name, final Class<?>... parameter_types) {
-		if ((mFlags & flag) == 0) try {
-			if (clazz.getDeclaredMethod(name, parameter_types) != null) mFlags |= flag;
-		} catch (final NoSuchMethodException ignored) {}
+	/** Computed once per decorator class (kept across re-binding), with a single pass over declared methods of each class in hierarchy. */
+	private static int getCapabilityFlags(final Class<? extends NevoDecoratorService> decorator) {
+		synchronized (sCapabilityFlags) {
+			final Integer cached = sCapabilityFlags.get(decorator);
+			if (cached != null) return cached;
+		}
+		int flags = 0;
+		for (Class<?> clazz = decorator; clazz != NevoDecoratorService.class; clazz = clazz.getSuperclass())
+			for (final Method method : clazz.getDeclaredMethods())
+				flags |= getCapabilityFlag(method);
+		synchronized (sCapabilityFlags) { sCapabilityFlags.put(decorator, flags); }
+		return flags;
+	}
+
+	private static int getCapabilityFlag(final Method method) {
+		final String name = method.getName();
+		switch (name) {
+		case "apply": case "applyAsync": case "onNotificationRemoved": case "onNotificationsRemoved": break;
+		default: return 0;		// Skip the allocation in getParameterTypes() for most methods.
+		}
+		final Class<?>[] params = method.getParameterTypes();
+		switch (name) {
+		case "apply":
+			return params.length == 1 && (params[0] == MutableStatusBarNotification.class || params[0] == List.class) ? FLAG_DECORATION_AWARE : 0;
+		case "applyAsync":
+			return params.length == 2 && params[0] == MutableStatusBarNotification.class && params[1] == Completion.class
+					? FLAG_DECORATION_AWARE | FLAG_ASYNC_APPLY : 0;
+		case "onNotificationsRemoved":
+			return params.length == 1 && params[0] == List.class ? FLAG_REMOVAL_AWARE_KEY_ONLY | FLAG_BATCH_REMOVAL_AWARE : 0;
+		default:
+			if (params.length != 2 || params[1] != int.class) return 0;
+			return params[0] == String.class ? FLAG_REMOVAL_AWARE_KEY_ONLY | FLAG_SINGLE_REMOVAL_OVERRIDDEN
+					: params[0] == StatusBarNotification.class ? FLAG_REMOVAL_AWARE | FLAG_SINGLE_REMOVAL_OVERRIDDEN : 0;
+		}
+	}
+
+	/** Publish to event streams with a snapshot by parcel round-trip, since the evolving notification is altered during write-back. */
+	private void publishPosted(final MutableStatusBarNotification evolved) {
+		if (mStreams.isEmpty()) return;
+		final StatusBarNotification snapshot;
+		final Parcel parcel = Parcel.obtain();
+		try {
+			evolved.writeToParcel(parcel, 0);
+			parcel.setDataPosition(0);
+			snapshot = MutableStatusBarNotification.CREATOR.createFromParcel(parcel);
+		} catch (final RuntimeException e) {
+			Log.e(TAG, "Error snapshotting " + evolved.getKey(), e);
+			return;
+		} finally {
+			parcel.recycle();
+		}
+		final String key = evolved.getKey(), original_key = evolved.getOriginalKey();
+		if (! key.equals(original_key)) mStreamKeys.put(key, original_key);		// Removal may come with the real key
+		for (final NotificationEventStream stream : mStreams)
+			if (! stream.onPosted(original_key, snapshot)) mStreams.remove(stream);
+	}
+
+	/** Events are always published with the original key, to be consistent with {@link #publishPosted(MutableStatusBarNotification)}. */
+	private void publishRemoved(final String key, final @Nullable StatusBarNotification notification, final int reason) {
+		final String original_key = mStreamKeys.remove(key);
+		if (mStreams.isEmpty()) return;
+		for (final NotificationEventStream stream : mStreams)
+			if (! stream.onRemoved(original_key != null ? original_key : key, notification, reason)) mStreams.remove(stream);
+	}
+
+	/** Declarations in meta-data are validated here to fail early, since they are consumed by engine. */
+	private void loadMetadata() {
+		final PackageManager pm = getPackageManager();
+		final ServiceInfo info;
+		try {
+			info = pm.getServiceInfo(new ComponentName(this, getClass()), GET_META_DATA);
+		} catch (final PackageManager.NameNotFoundException e) { return; }	// Should never happen
+		String key = META_KEY_RULES;
+		try {
+			mRules = DecoratorRules.load(pm, info);
+			key = META_KEY_FILTERS;
+			mFilters = NotificationFilters.load(pm, info);
+			key = META_KEY_PROJECTION;
+			Projection.load(info);
+		} catch (final XmlPullParserException | IOException | IllegalArgumentException e) {
+			throw new IllegalStateException("Invalid meta-data \"" + key + "\" of " + getClass().getName(), e);
+		}
+		mMetadataLoaded = true;
 	}
 
 	private static String shorten(final String name) {
@@ -299,6 +867,19 @@ import static java.util.Collections.singletonList;
 	private INevoController mController;
 	private int mSupportedApiVersion;
 	private int mFlags;
+	private @Nullable DecoratorRules mRules;
+	private @Nullable NotificationFilters mFilters;
+	private boolean mMetadataLoaded;
+	private final DecoratorStats mStats = new DecoratorStats();
+	private final IconCache mIconCache = new IconCache(IconCache.CAPACITY / 2);	// Mirror of the per-decorator instance in engine
+	private volatile @Nullable TraceRecorder mTrace;
+	private final List<NotificationEventStream> mStreams = new CopyOnWriteArrayList<>();
+	private final Map<String, String> mStreamKeys = new ConcurrentHashMap<>();		// Real key -> original key, only if different
+	private static final Map<Class<?>, Integer> sCapabilityFlags = new HashMap<>();
+	private static final Set<Integer> sVerifiedCallerUids = Collections.synchronizedSet(new HashSet<>());
+	private volatile @Nullable KeyedSerialExecutor mDispatcher;
+	private volatile @Nullable NotificationCache mNotificationCache;
+	private NotificationChannelCache mChannelCache;		// Lazily created on Android O+
 
 	@RestrictTo(LIBRARY) static final int TYPE_LATEST   = 1;
 	@RestrictTo(LIBRARY) static final int TYPE_ARCHIVED = 2;
@@ -309,52 +890,232 @@ import static java.util.Collections.singletonList;
 	@RestrictTo(LIBRARY) static final int FLAG_DECORATION_AWARE = 0x1;
 	@RestrictTo(LIBRARY) static final int FLAG_REMOVAL_AWARE_KEY_ONLY = 0x2;
 	@RestrictTo(LIBRARY) static final int FLAG_REMOVAL_AWARE = 0x4;
+	@RestrictTo(LIBRARY) static final int FLAG_BATCH_APPLY = 0x8;
+	@RestrictTo(LIBRARY) static final int FLAG_ASYNC_APPLY = 0x10;		// Engine should use applyAsync() exclusively if set.
+	/** Engine should use onNotificationsRemoved() (or onNotificationsRemovedLight() if FLAG_REMOVAL_AWARE is also set) for removals in burst. */
+	@RestrictTo(LIBRARY) static final int FLAG_BATCH_REMOVAL_AWARE = 0x20;
+	private static final int FLAGS_SINCE_API_5 = FLAG_BATCH_APPLY | FLAG_ASYNC_APPLY | FLAG_BATCH_REMOVAL_AWARE;
+	private static final int FLAG_SINGLE_REMOVAL_OVERRIDDEN = 0x40000000;		// Local only, never reported to engine
 	@RestrictTo(LIBRARY) static final String KEY_REASON = "reason";
 	@RestrictTo(LIBRARY) static final String KEY_SUPPORTED_API_VERSION = "version";
 	@RestrictTo(LIBRARY) static final String KEY_DURATION = "duration";
+	@RestrictTo(LIBRARY) static final String KEY_DEADLINE = "deadline";		// In SystemClock.elapsedRealtime()
 
 	protected final String TAG = "Nevo.Decorator[" + shorten(getClass().getSimpleName()) + "]";
 
 	private class INevoDecoratorWrapper extends INevoDecorator.Stub {
 
+		@Override public boolean onTransact(final int code, final Parcel data, final @Nullable Parcel reply, final int flags) throws RemoteException {
+			final int incoming = data.dataSize();
+			final TraceRecorder trace = mTrace;
+			if (trace != null) trace.instant(TraceRecorder.EVENT_PARCEL_IN, null, incoming);
+			try {
+				return super.onTransact(code, data, reply, flags);
+			} finally {
+				mStats.onTransaction(incoming, reply != null ? reply.dataSize() : -1);
+				if (trace != null && reply != null) trace.instant(TraceRecorder.EVENT_PARCEL_OUT, null, reply.dataSize());
+			}
+		}
+
 		@Override public void apply(final/* inout */MutableStatusBarNotification evolving, final @Nullable Bundle options) {
 			if (Binder.getCallingUid() != mCallerUid) throw new SecurityException();
+			invalidateCache(evolving.getOriginalKey());
+			evolving.setDeadline(getDeadline(options));
+			evolving.setIconCache(mIconCache, true);		// Reply of synchronous transaction is certainly received by engine.
+			dispatch(evolving.getOriginalKey(), true, () -> {
+				if (evolving.getRemainingTimeBudget() == 0) {	// Already exceeded while waiting in queue
+					Log.w(TAG, "Skip applying to " + evolving.getKey() + " due to deadline exceeded");
+					evolving.setAllowIncrementalWriteBack();
+					return;
+				}
+				if (mSupportedApiVersion < 5) {		// Rules and filters are not evaluated by engine before API 5.
+					final DecoratorRules rules = mRules;
+					final NotificationFilters filters = mFilters;
+					if (rules != null && rules.apply(evolving)) {
+						publishPosted(evolving);
+						evolving.setAllowIncrementalWriteBack();
+						return;
+					}
+					if (filters != null && ! filters.matches(evolving)) {
+						evolving.setAllowIncrementalWriteBack();
+						return;
+					}
+				}
+				final TraceRecorder trace = mTrace;
+				if (trace != null) trace.begin(TraceRecorder.EVENT_APPLY, evolving.getOriginalKey());
+				final long start = System.nanoTime();
+				try {
+					Log.v(TAG, "Applying to " + evolving.getKey());
+					NevoDecoratorService.this.apply(evolving);
+					if (evolving.getRemainingTimeBudget() == 0) {
+						Log.w(TAG, "Decoration of " + evolving.getKey() + " is abandoned due to deadline exceeded");
+						evolving.abandonMutations();
+					} else publishPosted(evolving);
+					evolving.setAllowIncrementalWriteBack();
+				} catch (final Throwable t) {
+					Log.e(TAG, "Error running apply()", t);
+					mStats.onException(t);
+					throw asParcelableException(t);
+				} finally {
+					mStats.onApplied(evolving.getPackageName(), System.nanoTime() - start);
+					if (trace != null) trace.end(TraceRecorder.EVENT_APPLY, evolving.getOriginalKey());
+				}
+			});
+		}
+
+		@Override public void applyBatch(final/* inout */List<MutableStatusBarNotification> evolving, final @Nullable Bundle options) {
+			if (Binder.getCallingUid() != mCallerUid) throw new SecurityException();
+			final long deadline = getDeadline(options);
+			for (final MutableStatusBarNotification sbn : evolving) if (sbn != null) {
+				invalidateCache(sbn.getOriginalKey());
+				sbn.setDeadline(deadline);
+			}
+			final TraceRecorder trace = mTrace;
+			if (trace != null) trace.begin(TraceRecorder.EVENT_APPLY_BATCH, null);
+			final long start = System.nanoTime();
 			try {
-				Log.v(TAG, "Applying to " + evolving.getKey());
+				Log.v(TAG, "Applying to " + evolving.size() + " notifications");
 				NevoDecoratorService.this.apply(evolving);
-				evolving.setAllowIncrementalWriteBack();
+				if (deadline != 0 && SystemClock.elapsedRealtime() >= deadline) {	// Keep all intact, since mutations cannot be attributed to time.
+					Log.w(TAG, "Decoration of " + evolving.size() + " notifications is abandoned due to deadline exceeded");
+					Collections.fill(evolving, null);
+				} else for (final MutableStatusBarNotification sbn : evolving) if (sbn != null) {
+					publishPosted(sbn);		// Before incremental write-back is allowed, since snapshot is parceled without flags.
+					sbn.setIconCache(mIconCache, false);		// Results may be dropped by engine, never mark icons as shipped.
+					sbn.setAllowIncrementalWriteBackAsListItem();
+				}
 			} catch (final Throwable t) {
 				Log.e(TAG, "Error running apply()", t);
+				mStats.onException(t);
 				throw asParcelableException(t);
+			} finally {
+				mStats.onBatchApplied(System.nanoTime() - start);
+				if (trace != null) trace.end(TraceRecorder.EVENT_APPLY_BATCH, null);
 			}
 		}
 
+		@Override public void applyAsync(final MutableStatusBarNotification evolving, final IApplyCallback callback, final @Nullable Bundle options) {
+			if (Binder.getCallingUid() != mCallerUid) throw new SecurityException();
+			invalidateCache(evolving.getOriginalKey());
+			evolving.setDeadline(getDeadline(options));
+			final AsyncCompletion completion = new AsyncCompletion(evolving, callback);
+			final TraceRecorder trace = mTrace;
+			if (trace != null) trace.beginAsync(TraceRecorder.EVENT_APPLY_ASYNC, evolving.getOriginalKey());
+			dispatch(evolving.getOriginalKey(), false, () -> {
+				try {
+					Log.v(TAG, "Applying asynchronously to " + evolving.getKey());
+					NevoDecoratorService.this.applyAsync(evolving, completion);
+				} catch (final Throwable t) {
+					Log.e(TAG, "Error running applyAsync()", t);
+					completion.fail(t);
+				}
+			});
+		}
+
 		@Override public void onNotificationRemoved(final String key, final @Nullable Bundle options) {
 			if (Binder.getCallingUid() != mCallerUid) throw new SecurityException();
-			try {
-				NevoDecoratorService.this.onNotificationRemoved(key, options != null ? options.getInt(KEY_REASON) : 0);
-			} catch (final Throwable t) {
-				Log.e(TAG, "Error running onNotificationRemoved()", t);
-				throw asParcelableException(t);
-			}
+			final int reason = options != null ? options.getInt(KEY_REASON) : 0;
+			if (isOnlyBatchRemovalOverridden()) dispatchRemovals(singletonList(new Removal(key, null, reason)));
+			else dispatchRemoval(key, null, reason);
 		}
 
 		@Override public void onNotificationRemovedLight(final StatusBarNotification notification, final @Nullable Bundle options) {
 			if (Binder.getCallingUid() != mCallerUid) throw new SecurityException();
-			try {
-				NevoDecoratorService.this.onNotificationRemoved(notification, options != null ? options.getInt(KEY_REASON) : 0);
-			} catch (final Throwable t) {
-				Log.e(TAG, "Error running onNotificationRemoved()", t);
-				throw asParcelableException(t);
+			final int reason = options != null ? options.getInt(KEY_REASON) : 0;
+			if (isOnlyBatchRemovalOverridden()) dispatchRemovals(singletonList(new Removal(notification.getKey(), notification, reason)));
+			else dispatchRemoval(notification.getKey(), notification, reason);
+		}
+
+		@Override public void onNotificationsRemoved(final List<String> keys, final int[] reasons, final @Nullable Bundle options) {
+			if (Binder.getCallingUid() != mCallerUid) throw new SecurityException();
+			final List<Removal> removals = new ArrayList<>(keys.size());
+			for (int i = 0; i < keys.size(); i ++) removals.add(new Removal(keys.get(i), null, reasons[i]));
+			dispatchRemovals(removals);
+		}
+
+		@Override public void onNotificationsRemovedLight(final List<StatusBarNotification> notifications, final int[] reasons, final @Nullable Bundle options) {
+			if (Binder.getCallingUid() != mCallerUid) throw new SecurityException();
+			final List<Removal> removals = new ArrayList<>(notifications.size());
+			for (int i = 0; i < notifications.size(); i ++) {
+				final StatusBarNotification notification = notifications.get(i);
+				removals.add(new Removal(notification.getKey(), notification, reasons[i]));
 			}
+			dispatchRemovals(removals);
+		}
+
+		private boolean isOnlyBatchRemovalOverridden() {
+			return (mFlags & (FLAG_BATCH_REMOVAL_AWARE | FLAG_SINGLE_REMOVAL_OVERRIDDEN)) == FLAG_BATCH_REMOVAL_AWARE;
+		}
+
+		private void dispatchRemovals(final List<Removal> removals) {
+			if ((mFlags & FLAG_BATCH_REMOVAL_AWARE) == 0) {		// Not overridden, dispatch to single-item callbacks in order of key.
+				for (final Removal removal : removals) dispatchRemoval(removal.getKey(), removal.getNotification(), removal.getReason());
+				return;
+			}
+			final List<String> keys = new ArrayList<>(removals.size());
+			for (final Removal removal : removals) {
+				keys.add(removal.getKey());
+				invalidateCache(removal.getKey());
+				publishRemoved(removal.getKey(), removal.getNotification(), removal.getReason());
+			}
+			final Runnable callback = () -> {
+				final TraceRecorder trace = mTrace;
+				if (trace != null) trace.begin(TraceRecorder.EVENT_REMOVAL_BATCH, null);
+				final long start = System.nanoTime();
+				try {
+					Log.v(TAG, "Handling removal of " + removals.size() + " notifications");
+					NevoDecoratorService.this.onNotificationsRemoved(removals);
+				} catch (final Throwable t) {
+					Log.e(TAG, "Error running onNotificationsRemoved()", t);
+					mStats.onException(t);
+					throw asParcelableException(t);
+				} finally {
+					mStats.onRemovalHandled(System.nanoTime() - start);
+					if (trace != null) trace.end(TraceRecorder.EVENT_REMOVAL_BATCH, null);
+				}
+			};
+			final KeyedSerialExecutor dispatcher = mDispatcher;
+			if (dispatcher == null) callback.run();
+			else dispatcher.execute(keys, callback);		// In order of every key involved
+		}
+
+		private void dispatchRemoval(final String key, final @Nullable StatusBarNotification notification, final int reason) {
+			invalidateCache(key);
+			publishRemoved(key, notification, reason);
+			dispatch(key, false, () -> {
+				final TraceRecorder trace = mTrace;
+				if (trace != null) trace.begin(TraceRecorder.EVENT_REMOVAL, key);
+				final long start = System.nanoTime();
+				try {
+					if (notification != null) NevoDecoratorService.this.onNotificationRemoved(notification, reason);
+					else NevoDecoratorService.this.onNotificationRemoved(key, reason);
+				} catch (final Throwable t) {
+					Log.e(TAG, "Error running onNotificationRemoved()", t);
+					mStats.onException(t);
+					throw asParcelableException(t);
+				} finally {
+					mStats.onRemovalHandled(System.nanoTime() - start);
+					if (trace != null) trace.end(TraceRecorder.EVENT_REMOVAL, key);
+				}
+			});
 		}
 
 		@Override public int onConnected(final INevoController controller, final Bundle options) {
+			final TraceRecorder trace = mTrace;
+			if (trace != null) trace.begin(TraceRecorder.EVENT_CONNECT, null);
+			try {
+				return connect(controller, options, trace);
+			} finally {
+				if (trace != null) trace.end(TraceRecorder.EVENT_CONNECT, null);
+			}
+		}
+
+		private int connect(final INevoController controller, final Bundle options, final @Nullable TraceRecorder trace) {
 			RemoteImplementation.initializeIfNotYet(NevoDecoratorService.this);
 
 			final PackageManager pm = getPackageManager();
 			final int caller_uid = Binder.getCallingUid(), my_uid = Process.myUid();
-			if (caller_uid != my_uid && pm.checkSignatures(caller_uid, my_uid) != SIGNATURE_MATCH) {
+			if (caller_uid != my_uid && ! sVerifiedCallerUids.contains(caller_uid) && pm.checkSignatures(caller_uid, my_uid) != SIGNATURE_MATCH) {
 				final String[] caller_pkgs = pm.getPackagesForUid(caller_uid);
 				if (caller_pkgs == null || caller_pkgs.length == 0) throw new SecurityException();
 				try { @SuppressLint("PackageManagerGetSignatures")
@@ -363,11 +1124,16 @@ import static java.util.Collections.singletonList;
 					for (final Signature signature : caller_info.signatures)
 						if (signature.hashCode() != SIGNATURE_HASH) throw new SecurityException("Caller signature mismatch");
 				} catch (final PackageManager.NameNotFoundException e) { throw new SecurityException(); }	// Should not happen
+				sVerifiedCallerUids.add(caller_uid);	// Skip the verification on reconnection (e.g. after engine restart) in this process.
 			}
 			mCallerUid = caller_uid;
 
-			mController = controller;
+			mController = trace != null ? trace.trace(controller) : controller;
+			final NotificationCache cache = mNotificationCache;
+			if (cache != null) cache.invalidateAll();		// Might be reconnected after engine restart
+			synchronized (NevoDecoratorService.this) { if (mChannelCache != null) mChannelCache.clear(); }
 			if (options != null) mSupportedApiVersion = options.getInt(KEY_SUPPORTED_API_VERSION);
+			mIconCache.reset(mSupportedApiVersion >= 5);	// Icons shipped before are not guaranteed to be kept by engine.
 			try {
 				Log.v(TAG, "onConnected");
 				NevoDecoratorService.this.onConnected();
@@ -375,7 +1141,34 @@ import static java.util.Collections.singletonList;
 				Log.e(TAG, "Error running onConnected()", t);
 				throw asParcelableException(t);
 			}
-			return mFlags;
+			int flags = mFlags & ~ FLAG_SINGLE_REMOVAL_OVERRIDDEN;
+			if (! mStreams.isEmpty()) flags |= FLAG_DECORATION_AWARE | FLAG_REMOVAL_AWARE_KEY_ONLY;	// To feed the event streams
+			if (cache != null) flags |= FLAG_REMOVAL_AWARE_KEY_ONLY;		// To invalidate the notification cache
+			if (mSupportedApiVersion < 5) {
+				flags &= ~ FLAGS_SINCE_API_5;		// Older engines keep the single-item synchronous path.
+				if (mRules != null) flags |= FLAG_DECORATION_AWARE;		// To execute rules locally
+			} else {
+				if ((flags & FLAG_DECORATION_AWARE) != 0) flags |= FLAG_BATCH_APPLY;
+				if ((flags & (FLAG_REMOVAL_AWARE | FLAG_REMOVAL_AWARE_KEY_ONLY)) != 0) flags |= FLAG_BATCH_REMOVAL_AWARE;
+			}
+			return flags;
+		}
+
+		private long getDeadline(final @Nullable Bundle options) {
+			return options != null ? options.getLong(KEY_DEADLINE) : 0;
+		}
+
+		private void invalidateCache(final String key) {
+			final NotificationCache cache = mNotificationCache;
+			if (cache != null) cache.invalidate(key);
+		}
+
+		/** Run the callback on current binder thread, or in order of the key if parallel dispatch is enabled. */
+		private void dispatch(final String key, final boolean wait, final Runnable callback) {
+			final KeyedSerialExecutor dispatcher = mDispatcher;
+			if (dispatcher == null) callback.run();
+			else if (wait) dispatcher.executeAndWait(key, callback);
+			else dispatcher.execute(key, callback);
 		}
 
 		private RuntimeException asParcelableException(final Throwable e) {
@@ -393,4 +1186,56 @@ import static java.util.Collections.singletonList;
 		private int mCallerUid = -1;
 		private static final int SIGNATURE_HASH = -541181501;
 	}
+
+	private class AsyncCompletion implements Completion {
+
+		@Override public void complete() {
+			if (mEvolving.getRemainingTimeBudget() == 0) {		// Engine keeps the notification intact upon error.
+				fail(new TimeoutException("Deadline exceeded"));
+				return;
+			}
+			if (! mDone.compareAndSet(false, true)) { Log.w(TAG, "Already completed: " + mEvolving.getKey()); return; }
+			onDone();
+			publishPosted(mEvolving);
+			mEvolving.setIconCache(mIconCache, false);		// Result may be dropped (e.g. arriving late) by engine.
+			mEvolving.setAllowIncrementalWriteBack();
+			try {
+				mCallback.onApplied(new IncrementalWriteBack(mEvolving), null);
+			} catch (final RemoteException e) {
+				Log.w(TAG, "Error delivering decoration of " + mEvolving.getKey(), e);
+			} catch (final RuntimeException e) {	// Most likely thrown in write-back
+				Log.e(TAG, "Error writing back " + mEvolving.getKey(), e);
+				notifyError(e);
+			}
+		}
+
+		@Override public void fail(final Throwable error) {
+			if (! mDone.compareAndSet(false, true)) { Log.w(TAG, "Already completed: " + mEvolving.getKey()); return; }
+			Log.w(TAG, "Decoration abandoned: " + mEvolving.getKey(), error);
+			onDone();
+			mStats.onException(error);
+			notifyError(error);
+		}
+
+		private void onDone() {
+			mStats.onApplied(mEvolving.getPackageName(), System.nanoTime() - mStartTime);
+			final TraceRecorder trace = mTrace;
+			if (trace != null) trace.endAsync(TraceRecorder.EVENT_APPLY_ASYNC, mEvolving.getOriginalKey());
+		}
+
+		private void notifyError(final Throwable error) {
+			try {
+				mCallback.onError(error.toString(), null);
+			} catch (final RemoteException e) {
+				Log.w(TAG, "Error delivering failure of " + mEvolving.getKey(), e);
+			}
+		}
+
+		AsyncCompletion(final MutableStatusBarNotification evolving, final IApplyCallback callback) { mEvolving = evolving; mCallback = callback; }
+
+		private final MutableStatusBarNotification mEvolving;
+		private final IApplyCallback mCallback;
+		private final AtomicBoolean mDone = new AtomicBoolean();
+		private final long mStartTime = System.nanoTime();
+	}
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.service.notification.StatusBarNotification;
+import android.support.annotation.Nullable;
+import android.support.annotation.RestrictTo;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Size-bounded local cache of notifications retrieved from engine, keyed by notification key.
+ * Cached lists are never exposed directly, callers always get a copy.
+ *
+ * <p>Since invalidation may happen while querying engine, results are only cached if none of the keys is invalidated since the
+ * {@link #generation() generation} captured before query. Per-key invalidations are tracked in bounded size, falling back to
+ * the latest one evicted for keys no longer tracked.
+ */
+@RestrictTo(LIBRARY) class NotificationCache {
+
+	@Nullable List<StatusBarNotification> getLatest(final String key) {
+		final List<StatusBarNotification> cached = mLatest.get(key);
+		(cached != null ? mHits : mMisses).incrementAndGet();
+		return cached;
+	}
+
+	/**
+	 * Cache the results of query for the given keys. Since split notifications (with altered tag and ID) share the same key but carry different keys,
+	 * the results are only cached if all of them can be attributed to the queried keys.
+	 */
+	void putLatest(final List<String> keys, final List<StatusBarNotification> results, final long generation) {
+		final Map<String, List<StatusBarNotification>> grouped = new HashMap<>(keys.size());
+		for (final String key : keys) grouped.put(key, new ArrayList<>(1));
+		for (final StatusBarNotification sbn : results) {
+			final List<StatusBarNotification> group = grouped.get(sbn.getKey());
+			if (group == null) return;		// Not attributable
+			group.add(sbn);
+		}
+		synchronized (this) {
+			for (final String key : keys) if (isInvalidatedSince(key, generation)) return;
+			for (final Map.Entry<String, List<StatusBarNotification>> entry : grouped.entrySet())
+				mLatest.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Nullable List<StatusBarNotification> getArchived(final String key, final int limit) {
+		final Archived cached = mArchived.get(key);
+		final boolean hit = cached != null && cached.limit == limit;
+		(hit ? mHits : mMisses).incrementAndGet();
+		return hit ? cached.notifications : null;
+	}
+
+	void putArchived(final String key, final int limit, final List<StatusBarNotification> notifications, final long generation) {
+		final Archived archived = new Archived(limit, new ArrayList<>(notifications));
+		synchronized (this) {
+			if (! isInvalidatedSince(key, generation)) mArchived.put(key, archived);
+		}
+	}
+
+	/** @return the current generation, to be captured before querying engine for {@link #putLatest} and {@link #putArchived}. */
+	synchronized long generation() { return mGeneration; }
+
+	synchronized void invalidate(final String key) {
+		mInvalidations.put(key, ++ mGeneration);
+		mLatest.remove(key);
+		mArchived.remove(key);
+	}
+
+	synchronized void invalidateAll() {
+		mEvictedInvalidation = ++ mGeneration;
+		mInvalidations.evictAll();
+		mLatest.evictAll();
+		mArchived.evictAll();
+	}
+
+	/** Guarded by this */
+	private boolean isInvalidatedSince(final String key, final long generation) {
+		final Long invalidation = mInvalidations.get(key);
+		return (invalidation != null ? invalidation : mEvictedInvalidation) > generation;
+	}
+
+	int hitCount() { return mHits.get(); }
+	int missCount() { return mMisses.get(); }
+
+	NotificationCache(final int max_keys) {
+		mLatest = new LruCache<>(max_keys);
+		mArchived = new LruCache<>(max_keys);
+		mInvalidations = new LruCache<String, Long>(max_keys) {
+			@Override protected void entryRemoved(final boolean evicted, final String key, final Long old_value, final Long new_value) {
+				if (evicted && old_value > mEvictedInvalidation) mEvictedInvalidation = old_value;	// Always under lock of this cache
+			}
+		};
+	}
+
+	private final LruCache<String, List<StatusBarNotification>> mLatest;
+	private final LruCache<String, Archived> mArchived;
+	private final LruCache<String, Long> mInvalidations;		// Generation of latest invalidation by key
+	private long mGeneration;						// Guarded by this
+	private long mEvictedInvalidation;			// Guarded by this
+	private final AtomicInteger mHits = new AtomicInteger(), mMisses = new AtomicInteger();
+
+	private static class Archived {
+		Archived(final int limit, final List<StatusBarNotification> notifications) { this.limit = limit; this.notifications = notifications; }
+		final int limit;
+		final List<StatusBarNotification> notifications;
+	}
+}
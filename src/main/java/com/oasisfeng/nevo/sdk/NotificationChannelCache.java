@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.app.NotificationChannel;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.UserHandle;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.RestrictTo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static android.os.Build.VERSION_CODES.O;
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Per-(package, user) cache of notification channels, for both channels queried from and created via engine.
+ *
+ * Queried channels reflect the actual settings (possibly modified by user) at the time of query, while created channels are kept
+ * as requested, only to skip identical creation. Changes made outside this decorator are not reflected until {@link #clear() cleared}.
+ *
+ * NotificationChannel is mutable, thus channels are copied upon insertion and retrieval, never shared with caller.
+ */
+@RestrictTo(LIBRARY) @RequiresApi(O) class NotificationChannelCache {
+
+	/** @return the cached channel, or null if not cached. Absent channel is never cached, since it may be created by app at any time. */
+	synchronized @Nullable NotificationChannel get(final String pkg, final @Nullable UserHandle user, final String channel) {
+		final Map<String, NotificationChannel> channels = mQueried.get(scope(pkg, user));
+		final NotificationChannel cached = channels != null ? channels.get(channel) : null;
+		return cached != null ? copy(cached) : null;
+	}
+
+	synchronized void onQueried(final String pkg, final @Nullable UserHandle user, final List<NotificationChannel> channels) {
+		final Map<String, NotificationChannel> cached = getOrCreate(mQueried, scope(pkg, user));
+		for (final NotificationChannel channel : channels) if (channel != null) cached.put(channel.getId(), copy(channel));
+	}
+
+	/** @return the channels to create, excluding those already created with identical settings. */
+	synchronized List<NotificationChannel> filterCreated(final String pkg, final @Nullable UserHandle user, final List<NotificationChannel> channels) {
+		final Map<String, NotificationChannel> created = mCreated.get(scope(pkg, user));
+		if (created == null) return channels;
+		final List<NotificationChannel> to_create = new ArrayList<>(channels.size());
+		for (final NotificationChannel channel : channels)
+			if (! channel.equals(created.get(channel.getId()))) to_create.add(channel);
+		return to_create;
+	}
+
+	synchronized void onCreated(final String pkg, final @Nullable UserHandle user, final List<NotificationChannel> channels) {
+		final String scope = scope(pkg, user);
+		final Map<String, NotificationChannel> created = getOrCreate(mCreated, scope), queried = mQueried.get(scope);
+		for (final NotificationChannel channel : channels) {
+			created.put(channel.getId(), copy(channel));
+			if (queried != null) queried.remove(channel.getId());	// Actual settings may differ from requested, re-query on demand.
+		}
+	}
+
+	synchronized void onDeleted(final String pkg, final @Nullable UserHandle user, final String channel) {
+		final String scope = scope(pkg, user);
+		final Map<String, NotificationChannel> created = mCreated.get(scope), queried = mQueried.get(scope);
+		if (created != null) created.remove(channel);
+		if (queried != null) queried.remove(channel);
+	}
+
+	synchronized void clear() {
+		mQueried.clear();
+		mCreated.clear();
+	}
+
+	private static NotificationChannel copy(final NotificationChannel channel) {
+		final Parcel parcel = Parcel.obtain();
+		try {
+			channel.writeToParcel(parcel, 0);
+			parcel.setDataPosition(0);
+			return NotificationChannel.CREATOR.createFromParcel(parcel);
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	private static Map<String, NotificationChannel> getOrCreate(final Map<String, Map<String, NotificationChannel>> map, final String scope) {
+		Map<String, NotificationChannel> channels = map.get(scope);
+		if (channels == null) map.put(scope, channels = new HashMap<>());
+		return channels;
+	}
+
+	private static String scope(final String pkg, final @Nullable UserHandle user) {
+		return pkg + "|" + (user != null ? user : Process.myUserHandle());
+	}
+
+	private final Map<String/* scope */, Map<String/* channel ID */, NotificationChannel>> mQueried = new HashMap<>(), mCreated = new HashMap<>();
+}
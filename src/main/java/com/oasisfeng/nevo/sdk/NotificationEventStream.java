@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stream of notification events (posted, updated and removed) seen by decorator, delivered in batch to the consumer on a dedicated worker thread.
+ * Obtained by {@link NevoDecoratorService#subscribe(int, OverflowPolicy, Consumer)}.
+ * Notifications not dispatched to decorator by engine (rejected by the declared filters or handled by the declared rules) are not seen.
+ *
+ * <p>Events are buffered up to the capacity given. Publishing never waits for the consumer, thus binder threads are never blocked by slow consumers.
+ * Streams are closed when the decorator service is destroyed.
+ */
+public final class NotificationEventStream {
+
+	/** Behavior when the buffer is full */
+	public enum OverflowPolicy {
+		/** Drop the oldest buffered event to make room for the new one. */
+		DROP_OLDEST,
+		/** Keep at most one pending event per key (the latest one), drop the oldest buffered event only if a new key comes in when full. */
+		COALESCE_PER_KEY,
+		/**
+		 * Never drop: events beyond capacity are held back (coalesced per key) until the consumer catches up, then enter the buffer in order
+		 * of their latest occurrence. No batch exceeds the capacity, but publishing never waits, thus held-back events are bounded by
+		 * the number of active notifications instead of the capacity.
+		 */
+		HOLD_BACK
+	}
+
+	public interface Consumer {
+		/** Called on the worker thread of stream, with events in order of occurrence (except coalesced ones). */
+		@WorkerThread void onEvents(List<Event> events);
+	}
+
+	public static final class Event {
+
+		public static final int TYPE_POSTED = 1;	// First seen since subscription
+		public static final int TYPE_UPDATED = 2;
+		public static final int TYPE_REMOVED = 3;
+
+		public int getType() { return mType; }
+		/** @return the original key, even for removal of notification whose key is altered by decorators. */
+		public String getKey() { return mKey; }
+		/** @return the snapshot of notification decorated by this decorator, or null for removal without notification provided. DO NOT mutate it. */
+		public @Nullable StatusBarNotification getNotification() { return mNotification; }
+		/** @return the reason of removal, see {@link NevoDecoratorService#onNotificationRemoved(String, int)} */
+		public int getReason() { return mReason; }
+		/** @return the time of occurrence in {@link SystemClock#elapsedRealtime()} */
+		public long getTime() { return mTime; }
+
+		@Override public String toString() { return "Event{" + mType + ", " + mKey + "}"; }
+
+		Event(final int type, final String key, final @Nullable StatusBarNotification notification, final int reason, final long time) {
+			mType = type; mKey = key; mNotification = notification; mReason = reason; mTime = time;
+		}
+
+		private final int mType;
+		private final String mKey;
+		private final @Nullable StatusBarNotification mNotification;
+		private final int mReason;
+		private final long mTime;
+	}
+
+	/** Stop the delivery. Pending events are discarded, but the batch being consumed (if any) is not interrupted. */
+	public void close() {
+		synchronized (mLock) {
+			mClosed = true;
+			mBuffer.clear();
+			mPending.clear();
+			mLock.notify();
+		}
+	}
+
+	/** @return the number of events dropped due to overflow so far, not including coalesced ones. */
+	public long getDroppedCount() {
+		synchronized (mLock) { return mDropped; }
+	}
+
+	/** @return false if already closed */
+	boolean onPosted(final String key, final StatusBarNotification snapshot) {
+		synchronized (mLock) {
+			if (mClosed) return false;
+			final int type = mActiveKeys.add(key) ? Event.TYPE_POSTED : Event.TYPE_UPDATED;
+			enqueue(new Event(type, key, snapshot, 0, SystemClock.elapsedRealtime()));
+			return true;
+		}
+	}
+
+	/** @return false if already closed */
+	boolean onRemoved(final String key, final @Nullable StatusBarNotification notification, final int reason) {
+		synchronized (mLock) {
+			if (mClosed) return false;
+			mActiveKeys.remove(key);
+			enqueue(new Event(Event.TYPE_REMOVED, key, notification, reason, SystemClock.elapsedRealtime()));
+			return true;
+		}
+	}
+
+	private void enqueue(final Event event) {
+		switch (mPolicy) {
+		case COALESCE_PER_KEY:
+			final Event pending = mPending.remove(event.mKey);
+			if (pending == null && mPending.size() >= mCapacity) {
+				final Iterator<Event> oldest = mPending.values().iterator();
+				oldest.next();
+				oldest.remove();
+				mDropped ++;
+			}
+			mPending.put(event.mKey, coalesce(pending, event));
+			break;
+		case HOLD_BACK:
+			if (mBuffer.size() < mCapacity && mPending.isEmpty()) mBuffer.add(event);
+			else mPending.put(event.mKey, coalesce(mPending.remove(event.mKey), event));	// Held back, in order of latest occurrence.
+			break;
+		default:
+			if (mBuffer.size() >= mCapacity) {
+				mBuffer.poll();
+				mDropped ++;
+			}
+			mBuffer.add(event);
+		}
+		mLock.notify();
+	}
+
+	/** Posted event followed by updates is still a posted event for consumer. */
+	private static Event coalesce(final @Nullable Event pending, final Event event) {
+		if (pending == null || pending.mType != Event.TYPE_POSTED || event.mType != Event.TYPE_UPDATED) return event;
+		return new Event(Event.TYPE_POSTED, event.mKey, event.mNotification, event.mReason, event.mTime);
+	}
+
+	/** @return the next batch, or null if closed. */
+	private @Nullable List<Event> take() throws InterruptedException {
+		synchronized (mLock) {
+			while (! mClosed && mBuffer.isEmpty() && mPending.isEmpty()) mLock.wait();
+			if (mClosed) return null;
+			final List<Event> batch = new ArrayList<>(mBuffer.size() + (mPolicy == OverflowPolicy.COALESCE_PER_KEY ? mPending.size() : 0));
+			if (mPolicy == OverflowPolicy.COALESCE_PER_KEY) {
+				batch.addAll(mPending.values());
+				mPending.clear();
+			} else {
+				batch.addAll(mBuffer);
+				mBuffer.clear();
+				if (mPolicy == OverflowPolicy.HOLD_BACK) {		// Admit the held-back events into buffer for the next batch.
+					final Iterator<Event> held = mPending.values().iterator();
+					while (held.hasNext() && mBuffer.size() < mCapacity) {
+						mBuffer.add(held.next());
+						held.remove();
+					}
+				}
+			}
+			return batch;
+		}
+	}
+
+	private void run() {
+		try {
+			List<Event> batch;
+			while ((batch = take()) != null) try {
+				mConsumer.onEvents(Collections.unmodifiableList(batch));
+			} catch (final RuntimeException e) {
+				Log.e(TAG, "Error consuming events", e);
+			}
+		} catch (final InterruptedException ignored) {}		// Never interrupted by us
+	}
+
+	void start() { mWorker.start(); }
+
+	NotificationEventStream(final int capacity, final OverflowPolicy policy, final Consumer consumer) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+		mCapacity = capacity;
+		mPolicy = policy;
+		mConsumer = consumer;
+		mWorker = new Thread(this::run, "Nevo.Stream");
+		mWorker.setDaemon(true);
+	}
+
+	private final int mCapacity;
+	private final OverflowPolicy mPolicy;
+	private final Consumer mConsumer;
+	private final Thread mWorker;
+	private final Object mLock = new Object();
+	private final ArrayDeque<Event> mBuffer = new ArrayDeque<>();				// Not used by COALESCE_PER_KEY
+	private final Map<String, Event> mPending = new LinkedHashMap<>();		// Coalesced events by COALESCE_PER_KEY, or held-back ones by HOLD_BACK
+	private final Set<String> mActiveKeys = new HashSet<>();
+	private long mDropped;
+	private boolean mClosed;
+
+	private static final String TAG = "Nevo.Stream";
+}
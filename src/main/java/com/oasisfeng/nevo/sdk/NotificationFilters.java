@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.content.res.XmlResourceParser;
+import android.service.notification.StatusBarNotification;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.RestrictTo;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static android.content.pm.PackageManager.GET_META_DATA;
+import static android.os.Build.VERSION_CODES.M;
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Interest filters of decorator, compiled from XML resource referenced by meta-data {@link NevoDecoratorService#META_KEY_FILTERS}.
+ * Nevolution engine evaluates them before dispatching notification to decorator. This class can also be used in decorator project
+ * to verify the declared filters locally, with the same evaluation as engine.
+ */
+@RequiresApi(M) public class NotificationFilters {
+
+	/** @return the filters declared by the decorator service, or null if not declared (interested in all notifications). */
+	public static @Nullable NotificationFilters load(final Context context, final Class<? extends NevoDecoratorService> decorator)
+			throws PackageManager.NameNotFoundException, XmlPullParserException, IOException {
+		final PackageManager pm = context.getPackageManager();
+		return load(pm, pm.getServiceInfo(new ComponentName(context, decorator), GET_META_DATA));
+	}
+
+	/** @return whether the notification matches any of the filters. */
+	public boolean matches(final StatusBarNotification sbn) {
+		final NotificationMatcher[] filters = mFiltersByPackage.get(sbn.getPackageName());
+		for (final NotificationMatcher filter : filters != null ? filters : mFiltersForAnyPackage)
+			if (filter.matches(sbn)) return true;
+		return false;
+	}
+
+	@RestrictTo(LIBRARY) public static @Nullable NotificationFilters load(final PackageManager pm, final ServiceInfo service)
+			throws XmlPullParserException, IOException {
+		final XmlResourceParser parser = service.loadXmlMetaData(pm, NevoDecoratorService.META_KEY_FILTERS);
+		if (parser == null) return null;
+		try {
+			return parse(parser);
+		} finally {
+			parser.close();		// XmlResourceParser is not AutoCloseable before Android N
+		}
+	}
+
+	@RestrictTo(LIBRARY) public static NotificationFilters parse(final XmlPullParser parser) throws XmlPullParserException, IOException {
+		final List<NotificationMatcher> filters = new ArrayList<>();
+		int type;
+		while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+			if (type != XmlPullParser.START_TAG) continue;
+			final String tag = parser.getName();
+			if (parser.getDepth() == 1 && TAG_FILTERS.equals(tag)) continue;
+			if (parser.getDepth() != 2 || ! TAG_FILTER.equals(tag)) throw new XmlPullParserException("Unexpected element: " + tag, parser, null);
+			for (int i = 0; i < parser.getAttributeCount(); i ++)
+				if (! NotificationMatcher.isCriterion(parser.getAttributeName(i)))
+					throw new XmlPullParserException("Unknown attribute: " + parser.getAttributeName(i), parser, null);
+			filters.add(NotificationMatcher.parse(parser));
+		}
+		if (filters.isEmpty()) throw new XmlPullParserException("No filter declared", parser, null);
+		return new NotificationFilters(filters);
+	}
+
+	private NotificationFilters(final List<NotificationMatcher> filters) {
+		final List<NotificationMatcher> filters_for_any_package = new ArrayList<>();
+		final Map<String, List<NotificationMatcher>> filters_by_package = new HashMap<>();
+		for (final NotificationMatcher filter : filters) {
+			final Set<String> pkgs = filter.getPackages();
+			if (pkgs == null) filters_for_any_package.add(filter);
+			else for (final String pkg : pkgs) {
+				List<NotificationMatcher> list = filters_by_package.get(pkg);
+				if (list == null) filters_by_package.put(pkg, list = new ArrayList<>());
+				list.add(filter);
+			}
+		}
+		mFiltersForAnyPackage = filters_for_any_package.toArray(new NotificationMatcher[0]);
+		for (final Map.Entry<String, List<NotificationMatcher>> entry : filters_by_package.entrySet()) {
+			entry.getValue().addAll(filters_for_any_package);
+			mFiltersByPackage.put(entry.getKey(), entry.getValue().toArray(new NotificationMatcher[0]));
+		}
+	}
+
+	private final Map<String, NotificationMatcher[]> mFiltersByPackage = new HashMap<>();
+	private final NotificationMatcher[] mFiltersForAnyPackage;
+
+	private static final String TAG_FILTERS = "filters";
+	private static final String TAG_FILTER = "filter";
+}
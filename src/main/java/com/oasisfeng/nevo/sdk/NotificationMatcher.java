@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.app.Notification;
+import android.service.notification.StatusBarNotification;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.RestrictTo;
+import android.text.TextUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.M;
+import static android.os.Build.VERSION_CODES.O;
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Compiled criteria of notification, parsed from attributes of XML element declared by decorator. All criteria present must be satisfied:
+ * <ul>
+ *   <li>"package": package names separated by comma</li>
+ *   <li>"channel": notification channel IDs separated by comma (never matched before Android O)</li>
+ *   <li>"template": value of {@link Notification#EXTRA_TEMPLATE}, either full name or short name (e.g. "MessagingStyle")</li>
+ *   <li>"title": regular expression to find in title</li>
+ *   <li>"category": notification categories separated by comma</li>
+ *   <li>"extra": keys separated by comma, all of them must be present in extras</li>
+ * </ul>
+ *
+ * This is an internal class, NEVER use it in decorator project.
+ */
+@RestrictTo(LIBRARY) @RequiresApi(M) public class NotificationMatcher {
+
+	static final String ATTR_PACKAGE = "package";
+	static final String ATTR_CHANNEL = "channel";
+	static final String ATTR_TEMPLATE = "template";
+	static final String ATTR_TITLE = "title";
+	static final String ATTR_CATEGORY = "category";
+	static final String ATTR_EXTRA = "extra";
+
+	public boolean matches(final StatusBarNotification sbn) {
+		if (mPackages != null && ! mPackages.contains(sbn.getPackageName())) return false;
+		final Notification n = sbn instanceof MutableStatusBarNotification ? ((MutableStatusBarNotification) sbn).peekNotification() : sbn.getNotification();
+		if (mChannels != null && (SDK_INT < O || ! mChannels.contains(n.getChannelId()))) return false;
+		if (mCategories != null && ! mCategories.contains(n.category)) return false;
+		if (mTemplate != null && ! mTemplate.equals(n.extras.getString(Notification.EXTRA_TEMPLATE))) return false;
+		if (mExtras != null) for (final String key : mExtras) if (! n.extras.containsKey(key)) return false;
+		if (mTitle != null) {
+			final CharSequence title = n.extras.getCharSequence(Notification.EXTRA_TITLE);
+			if (title == null || ! mTitle.matcher(title).find()) return false;
+		}
+		return true;
+	}
+
+	/** @return the packages to match, or null for any package. */
+	public @Nullable Set<String> getPackages() { return mPackages; }
+
+	/** @return whether the attribute is consumed as criterion. */
+	static boolean isCriterion(final String attribute) {
+		switch (attribute) {
+		case ATTR_PACKAGE: case ATTR_CHANNEL: case ATTR_TEMPLATE: case ATTR_TITLE: case ATTR_CATEGORY: case ATTR_EXTRA: return true;
+		default: return false;
+		}
+	}
+
+	/** Parse criteria from attributes of current element. */
+	static NotificationMatcher parse(final XmlPullParser parser) throws XmlPullParserException {
+		final String title = parser.getAttributeValue(null, ATTR_TITLE);
+		final Pattern title_pattern;
+		try {
+			title_pattern = title != null ? Pattern.compile(title) : null;
+		} catch (final PatternSyntaxException e) {
+			throw new XmlPullParserException("Invalid regular expression in \"" + ATTR_TITLE + "\": " + title, parser, e);
+		}
+		final Set<String> extras = parseList(parser, ATTR_EXTRA);
+		return new NotificationMatcher(parseList(parser, ATTR_PACKAGE), parseList(parser, ATTR_CHANNEL), parseList(parser, ATTR_CATEGORY),
+				parseTemplate(parser.getAttributeValue(null, ATTR_TEMPLATE)), title_pattern, extras != null ? extras.toArray(new String[0]) : null);
+	}
+
+	private static @Nullable Set<String> parseList(final XmlPullParser parser, final String attribute) throws XmlPullParserException {
+		final String value = parser.getAttributeValue(null, attribute);
+		if (value == null) return null;
+		final Set<String> items = new HashSet<>(Arrays.asList(TextUtils.split(value.replace(" ", ""), ",")));
+		items.remove("");
+		if (items.isEmpty()) throw new XmlPullParserException("Empty \"" + attribute + "\"", parser, null);
+		return Collections.unmodifiableSet(items);
+	}
+
+	private static @Nullable String parseTemplate(final @Nullable String template) {
+		if (template == null || template.indexOf('.') >= 0) return template;
+		return "android.app.Notification$" + template;		// Short name, e.g. "MessagingStyle"
+	}
+
+	NotificationMatcher(final @Nullable Set<String> packages, final @Nullable Set<String> channels, final @Nullable Set<String> categories,
+						final @Nullable String template, final @Nullable Pattern title, final @Nullable String[] extras) {
+		mPackages = packages;
+		mChannels = channels;
+		mCategories = categories;
+		mTemplate = template;
+		mTitle = title;
+		mExtras = extras;
+	}
+
+	private final @Nullable Set<String> mPackages;
+	private final @Nullable Set<String> mChannels;
+	private final @Nullable Set<String> mCategories;
+	private final @Nullable String mTemplate;
+	private final @Nullable Pattern mTitle;
+	private final @Nullable String[] mExtras;
+}
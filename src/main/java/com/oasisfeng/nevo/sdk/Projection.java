@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.app.Notification;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.RestrictTo;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static android.os.Build.VERSION_CODES.M;
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Projection declared by decorator with meta-data {@link NevoDecoratorService#META_KEY_PROJECTION}, for engine to trim the notification
+ * before dispatching, keeping only the extras and heavy fields the decorator reads.
+ *
+ * <p>No merging is needed for write-back: the incremental write-back only carries the changes made by decorator, relative to the trimmed
+ * notification received, which are then applied to the full notification in engine. Thus engine must never trim notifications written back
+ * in full (e.g. batch apply), and decorator must never mutate extras or fields outside its projection.
+ *
+ * <p>Actions and {@link Notification#EXTRA_PEOPLE} are always kept, since helpers ({@link MutableNotification#addAction(Notification.Action)},
+ * {@link MutableNotification#addPerson(String)} and {@link MutableNotification.Editor}) merge into them, which would otherwise be written back
+ * as the full value and overwrite the one in engine.
+ *
+ * This is an internal class, NEVER use it in decorator project.
+ */
+@RestrictTo(LIBRARY) @RequiresApi(M) public class Projection {
+
+	static final String FIELD_CONTENT_VIEW = "contentView";
+	static final String FIELD_BIG_CONTENT_VIEW = "bigContentView";
+	static final String FIELD_HEADS_UP_CONTENT_VIEW = "headsUpContentView";
+	static final String FIELD_PUBLIC_VERSION = "publicVersion";
+	static final String FIELD_ACTIONS = "actions";		// Always kept, accepted for declaration only.
+
+	/** @return the projection declared by the decorator service, or null if not declared (full notification required). */
+	public static @Nullable Projection load(final ServiceInfo service) {
+		final Bundle metadata = service.metaData;
+		final String value = metadata != null ? metadata.getString(NevoDecoratorService.META_KEY_PROJECTION) : null;
+		return value != null ? parse(value) : null;
+	}
+
+	/** @throws IllegalArgumentException if empty */
+	public static Projection parse(final String value) {
+		final Set<String> keys = new HashSet<>(Arrays.asList(TextUtils.split(value.replace(" ", ""), ",")));
+		keys.remove("");
+		if (keys.isEmpty()) throw new IllegalArgumentException("Empty projection");
+		final Set<String> fields = new HashSet<>();
+		for (final String field : FIELDS) if (keys.remove(field)) fields.add(field);
+		return new Projection(keys, fields);
+	}
+
+	/** Trim the notification in place. Internal extras of SDK, actions and people are always kept. */
+	public void trim(final Notification n) {
+		if (n.extras != null) {
+			final List<String> to_remove = new ArrayList<>();
+			for (final String key : n.extras.keySet())
+				if (! mExtras.contains(key) && ! key.startsWith(SDK_EXTRAS_PREFIX) && ! Notification.EXTRA_PEOPLE.equals(key)) to_remove.add(key);
+			for (final String key : to_remove) n.extras.remove(key);
+		}
+		if (! mFields.contains(FIELD_CONTENT_VIEW)) n.contentView = null;
+		if (! mFields.contains(FIELD_BIG_CONTENT_VIEW)) n.bigContentView = null;
+		if (! mFields.contains(FIELD_HEADS_UP_CONTENT_VIEW)) n.headsUpContentView = null;
+		if (! mFields.contains(FIELD_PUBLIC_VERSION)) n.publicVersion = null;
+	}
+
+	public Set<String> getExtras() { return mExtras; }
+
+	private Projection(final Set<String> extras, final Set<String> fields) { mExtras = extras; mFields = fields; }
+
+	private final Set<String> mExtras;
+	private final Set<String> mFields;
+
+	private static final String[] FIELDS = { FIELD_CONTENT_VIEW, FIELD_BIG_CONTENT_VIEW, FIELD_HEADS_UP_CONTENT_VIEW, FIELD_PUBLIC_VERSION, FIELD_ACTIONS };
+	private static final String SDK_EXTRAS_PREFIX = "nevo.";
+}
@@ -26,6 +26,7 @@ import android.support.annotation.VisibleForTesting;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.FutureTask;
 
 import static android.content.Context.CONTEXT_IGNORE_SECURITY;
 import static android.content.Context.CONTEXT_INCLUDE_CODE;
@@ -45,20 +46,35 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 
 	/** This operation might be destructive to the given MutableNotification. DO NOT USE THE NOTIFICATION INSTANCE AFTERWARD. */
 	static void writeBackToParcel(final Parcel out, final int flags, final MutableNotification notification, final Notification original) {
-		try {
-			sMutableNotificationWriteBack.invoke(null, out, flags, notification, original);
-		} catch (final InvocationTargetException e) {
-			final Throwable cause = e.getCause();
-			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
-			if (cause instanceof Error) throw (Error) cause;
-			throw new RuntimeException(cause);
-		} catch (final IllegalAccessException e) {
-			throw new IllegalStateException("Incompatible with currently installed version of Nevolution", e);
+		sWriteBack.writeBackToParcel(out, flags, notification, original);
+	}
+
+	/** Start resolution in background, to keep it out of the first incoming call from engine. */
+	static void initializeInBackground(final Context context) {
+		synchronized (RemoteImplementation.class) {
+			if (sWriteBack != null || sInitialization != null) return;
+			final FutureTask<Void> initialization = new FutureTask<>(() -> initialize(context), null);
+			sInitialization = initialization;
+			new Thread(initialization, "Nevo.Remote").start();
 		}
 	}
 
 	static void initializeIfNotYet(final Context context) {
-		if (sMutableNotificationWriteBack != null) return;
+		if (sWriteBack != null) return;
+		final FutureTask<Void> initialization;
+		synchronized (RemoteImplementation.class) {
+			if (sInitialization == null) sInitialization = new FutureTask<>(() -> initialize(context), null);
+			initialization = sInitialization;
+		}
+		initialization.run();		// No-op if already started in background
+		try {
+			KeyedSerialExecutor.await(initialization);
+		} finally {		// Allow retry on next call if failed
+			synchronized (RemoteImplementation.class) { if (sWriteBack == null && sInitialization == initialization) sInitialization = null; }
+		}
+	}
+
+	private static void initialize(final Context context) {
 		final Context engine_context;
 		try {
 			if (ENGINE_PACKAGE.equals(context.getPackageName())) engine_context = context;
@@ -69,7 +85,8 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 			if (res_id == 0) throw new Resources.NotFoundException(RES_REMOTE_CLASS);
 			final String name = res.getString(res_id);
 			sClass = classloader.loadClass(name);
-			sMutableNotificationWriteBack = sClass.getMethod("writeBackToParcel", Parcel.class, int.class, Notification.class, Notification.class);
+			final Method method = sClass.getMethod("writeBackToParcel", Parcel.class, int.class, Notification.class, Notification.class);
+			sWriteBack = new ReflectiveWriteBack(method);
 		} catch (final PackageManager.NameNotFoundException e) {
 			throw new IllegalStateException("Nevolution is not installed");
 		} catch (final ClassNotFoundException | NoSuchMethodException | ClassCastException | Resources.NotFoundException e) {
@@ -77,6 +94,32 @@ import static android.support.annotation.RestrictTo.Scope.LIBRARY;
 		}
 	}
 
+	@VisibleForTesting interface WriteBack {
+		void writeBackToParcel(Parcel out, int flags, Notification notification, Notification original);
+	}
+
+	/** The method is resolved only once. (MethodHandle is not used, since invoke-polymorphic cannot be dexed with min-api below 26) */
+	private static class ReflectiveWriteBack implements WriteBack {
+
+		@Override public void writeBackToParcel(final Parcel out, final int flags, final Notification notification, final Notification original) {
+			try {
+				mMethod.invoke(null, out, flags, notification, original);
+			} catch (final InvocationTargetException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				if (cause instanceof Error) throw (Error) cause;
+				throw new RuntimeException(cause);
+			} catch (final IllegalAccessException e) {
+				throw new IllegalStateException("Incompatible with currently installed version of Nevolution", e);
+			}
+		}
+
+		ReflectiveWriteBack(final Method method) { mMethod = method; }
+
+		private final Method mMethod;
+	}
+
 	@VisibleForTesting static Class<?> sClass;
-	private static Method sMutableNotificationWriteBack;
+	@VisibleForTesting static volatile WriteBack sWriteBack;
+	private static FutureTask<Void> sInitialization;	// Guarded by class
 }
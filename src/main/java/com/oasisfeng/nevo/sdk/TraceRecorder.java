@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.RestrictTo;
+import android.util.JsonWriter;
+import android.util.SparseArray;
+
+import com.oasisfeng.nevo.engine.INevoController;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static android.os.Build.VERSION_CODES.M;
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Fixed-size lock-free ring buffer of trace events in the decoration pipeline, with sections emitted to {@link Trace} for systrace,
+ * and exported in Chrome trace event format (JSON, also supported by Perfetto UI) on demand.
+ *
+ * <p>Recording takes no lock and allocates nothing: each event claims a slot by atomic increment, and publishes it with a per-slot sequence number,
+ * which also lets the exporter skip slots being overwritten concurrently. Event names must be constants, keys are stored as references.
+ */
+@RestrictTo(LIBRARY) @RequiresApi(M) class TraceRecorder {
+
+	static final String EVENT_BIND = "nevo:bind";
+	static final String EVENT_CONNECT = "nevo:connect";
+	static final String EVENT_APPLY = "nevo:apply";
+	static final String EVENT_APPLY_BATCH = "nevo:apply_batch";
+	static final String EVENT_APPLY_ASYNC = "nevo:apply_async";
+	static final String EVENT_REMOVAL = "nevo:removal";
+	static final String EVENT_REMOVAL_BATCH = "nevo:removal_batch";
+	static final String EVENT_PARCEL_IN = "nevo:parcel_in";
+	static final String EVENT_PARCEL_OUT = "nevo:parcel_out";
+
+	private static final char PHASE_BEGIN = 'B', PHASE_END = 'E', PHASE_ASYNC_BEGIN = 'b', PHASE_ASYNC_END = 'e', PHASE_INSTANT = 'i';
+
+	/** Begin a synchronous section, which must be ended on the same thread. */
+	void begin(final String name, final @Nullable String key) {
+		Trace.beginSection(name);
+		record(name, PHASE_BEGIN, key, 0);
+	}
+
+	void end(final String name, final @Nullable String key) {
+		record(name, PHASE_END, key, 0);
+		Trace.endSection();
+	}
+
+	/** Begin an asynchronous section, which may end on another thread. Asynchronous sections are only recorded, not emitted to systrace. */
+	void beginAsync(final String name, final String key) { record(name, PHASE_ASYNC_BEGIN, key, 0); }
+	void endAsync(final String name, final String key) { record(name, PHASE_ASYNC_END, key, 0); }
+
+	void instant(final String name, final @Nullable String key, final long value) { record(name, PHASE_INSTANT, key, value); }
+
+	private void record(final String name, final char phase, final @Nullable String key, final long value) {
+		final long index = mNextIndex.getAndIncrement();
+		final int slot = (int) (index & mMask);
+		mSequences.set(slot, - 1);		// Being written
+		mTimes[slot] = SystemClock.elapsedRealtimeNanos();
+		mNames[slot] = name;
+		mPhases[slot] = phase;
+		mKeys[slot] = key;
+		mValues[slot] = value;
+		mThreads[slot] = Process.myTid();
+		mSequences.set(slot, index);	// Publish
+	}
+
+	/** Export recorded events (oldest first) in Chrome trace event format. */
+	void export(final Writer out) throws IOException {
+		final JsonWriter writer = new JsonWriter(out);
+		writer.beginObject().name("traceEvents").beginArray();
+		final int pid = Process.myPid();
+		final long end = mNextIndex.get();
+		for (long index = Math.max(0, end - mMask - 1); index < end; index ++) {
+			final int slot = (int) (index & mMask);
+			if (mSequences.get(slot) != index) continue;		// Not yet published, or already overwritten
+			final long time = mTimes[slot];
+			final String name = mNames[slot], key = mKeys[slot];
+			final char phase = mPhases[slot];
+			final long value = mValues[slot];
+			final int tid = mThreads[slot];
+			if (mSequences.get(slot) != index) continue;		// Overwritten during reading
+
+			writer.beginObject().name("name").value(name).name("cat").value("nevo").name("ph").value(String.valueOf(phase))
+					.name("ts").value(time / 1000.0).name("pid").value(pid).name("tid").value(tid);
+			if (phase == PHASE_ASYNC_BEGIN || phase == PHASE_ASYNC_END) writer.name("id").value(key != null ? key.hashCode() : 0);
+			else if (phase == PHASE_INSTANT) writer.name("s").value("t");
+			if (key != null || value != 0) {
+				writer.name("args").beginObject();
+				if (key != null) writer.name("key").value(key);
+				if (value != 0) writer.name("value").value(value);
+				writer.endObject();
+			}
+			writer.endObject();
+		}
+		writer.endArray().name("displayTimeUnit").value("ms").endObject();
+		writer.flush();
+	}
+
+	/** Wrap the controller to record its outgoing calls, by intercepting at binder level with no extra allocation per call. */
+	INevoController trace(final INevoController controller) {
+		return INevoController.Stub.asInterface(new TracingBinder(controller.asBinder()));
+	}
+
+	/** @param capacity rounded up to power of 2 */
+	TraceRecorder(final int capacity) {
+		final int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		mMask = size - 1;
+		mSequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i ++) mSequences.set(i, - 1);
+		mTimes = new long[size];
+		mValues = new long[size];
+		mThreads = new int[size];
+		mPhases = new char[size];
+		mNames = new String[size];
+		mKeys = new String[size];
+	}
+
+	private final int mMask;
+	private final AtomicLong mNextIndex = new AtomicLong();
+	private final AtomicLongArray mSequences;
+	private final long[] mTimes, mValues;
+	private final int[] mThreads;
+	private final char[] mPhases;
+	private final String[] mNames, mKeys;
+
+	private class TracingBinder implements IBinder {
+
+		@Override public boolean transact(final int code, final Parcel data, final @Nullable Parcel reply, final int flags) throws RemoteException {
+			final String name = sControllerTransactionNames.get(code, "nevo:controller");
+			begin(name, null);
+			try {
+				return mBinder.transact(code, data, reply, flags);
+			} finally {
+				end(name, null);
+			}
+		}
+
+		@Override public @Nullable String getInterfaceDescriptor() throws RemoteException { return mBinder.getInterfaceDescriptor(); }
+		@Override public boolean pingBinder() { return mBinder.pingBinder(); }
+		@Override public boolean isBinderAlive() { return mBinder.isBinderAlive(); }
+		@Override public @Nullable IInterface queryLocalInterface(final String descriptor) { return null; }	// Always go through transact()
+		@Override public void dump(final FileDescriptor fd, final @Nullable String[] args) throws RemoteException { mBinder.dump(fd, args); }
+		@Override public void dumpAsync(final FileDescriptor fd, final @Nullable String[] args) throws RemoteException { mBinder.dumpAsync(fd, args); }
+		@Override public void linkToDeath(final DeathRecipient recipient, final int flags) throws RemoteException { mBinder.linkToDeath(recipient, flags); }
+		@Override public boolean unlinkToDeath(final DeathRecipient recipient, final int flags) { return mBinder.unlinkToDeath(recipient, flags); }
+
+		TracingBinder(final IBinder binder) { mBinder = binder; }
+
+		private final IBinder mBinder;
+	}
+
+	private static final SparseArray<String> sControllerTransactionNames = new SparseArray<>();
+	static {	// Generated by AIDL as "TRANSACTION_<method>"
+		final String prefix = "TRANSACTION_";
+		for (final Field field : INevoController.Stub.class.getDeclaredFields()) {
+			if (field.getType() != int.class || ! Modifier.isStatic(field.getModifiers()) || ! field.getName().startsWith(prefix)) continue;
+			try {
+				field.setAccessible(true);
+				sControllerTransactionNames.put(field.getInt(null), "nevo:controller." + field.getName().substring(prefix.length()));
+			} catch (final IllegalAccessException | RuntimeException ignored) {}
+		}
+	}
+}
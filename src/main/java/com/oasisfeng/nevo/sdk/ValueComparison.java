@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Nevolution Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.oasisfeng.nevo.sdk;
+
+import android.app.PendingIntent;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Icon;
+import android.os.BaseBundle;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.RestrictTo;
+import android.util.Log;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+import static android.os.Build.VERSION_CODES.M;
+import static android.support.annotation.RestrictTo.Scope.LIBRARY;
+
+/**
+ * Conservative equality of values in extras, for values un-parceled separately (thus not identical) from the same source.
+ * Checked in order: identity, equals() of immutable types and {@link PendingIntent}, arrays and lists element-wise, {@link Bundle} recursively,
+ * {@link Bitmap#sameAs(Bitmap)}, content digest of {@link Icon}, and finally byte-wise comparison of parceled form.
+ * Any failure is treated as not equal, which only costs a redundant write-back.
+ */
+@RestrictTo(LIBRARY) @RequiresApi(M) class ValueComparison {
+
+	static boolean equal(final @Nullable Object a, final @Nullable Object b) {
+		if (a == b) return true;
+		if (a == null || b == null || a.getClass() != b.getClass()) return false;
+		if (a instanceof String || a instanceof Number || a instanceof Boolean || a instanceof Character || a instanceof PendingIntent)
+			return a.equals(b);
+		final Class<?> type = a.getClass();
+		if (type.isArray()) {
+			if (type.getComponentType().isPrimitive()) return primitiveArraysEqual(a, b);
+			final Object[] array_a = (Object[]) a, array_b = (Object[]) b;
+			if (array_a.length != array_b.length) return false;
+			for (int i = 0; i < array_a.length; i ++) if (! equal(array_a[i], array_b[i])) return false;
+			return true;
+		}
+		if (a instanceof List) {
+			final List<?> list_a = (List<?>) a, list_b = (List<?>) b;
+			if (list_a.size() != list_b.size()) return false;
+			for (int i = 0; i < list_a.size(); i ++) if (! equal(list_a.get(i), list_b.get(i))) return false;
+			return true;
+		}
+		if (a instanceof Bundle) return bundlesEqual((Bundle) a, (Bundle) b);
+		if (a instanceof Bitmap) return ((Bitmap) a).sameAs((Bitmap) b);
+		if (a instanceof Icon) {
+			final long digest = IconCache.digest((Icon) a);
+			return digest != 0 && digest == IconCache.digest((Icon) b);
+		}
+		return parceledEqual(a, b);		// Including spanned CharSequence, whose equals() ignores spans.
+	}
+
+	/** Whether the bundle is still in parceled form, that is, never accessed since un-parceled. */
+	static boolean isParcelled(final Bundle bundle) {
+		if (sMethodIsParcelled != null) try {
+			return (boolean) sMethodIsParcelled.invoke(bundle);
+		} catch (final ReflectiveOperationException | RuntimeException ignored) {}
+		return false;
+	}
+
+	/** Whether the bundle is identical in parceled form to the one still parceled, without un-parceling the latter. */
+	static boolean equalToParcelled(final Bundle bundle, final Bundle parcelled) {
+		return parceledEqual(bundle, parcelled);		// Parceled bundle is written by copying its parceled data as is.
+	}
+
+	private static boolean bundlesEqual(final Bundle a, final Bundle b) {
+		if (a.size() != b.size()) return false;
+		for (final String key : a.keySet())
+			if (! b.containsKey(key) || ! equal(a.get(key), b.get(key))) return false;
+		return true;
+	}
+
+	private static boolean primitiveArraysEqual(final Object a, final Object b) {
+		if (a instanceof int[]) return Arrays.equals((int[]) a, (int[]) b);
+		if (a instanceof long[]) return Arrays.equals((long[]) a, (long[]) b);
+		if (a instanceof byte[]) return Arrays.equals((byte[]) a, (byte[]) b);
+		if (a instanceof boolean[]) return Arrays.equals((boolean[]) a, (boolean[]) b);
+		if (a instanceof char[]) return Arrays.equals((char[]) a, (char[]) b);
+		if (a instanceof short[]) return Arrays.equals((short[]) a, (short[]) b);
+		if (a instanceof float[]) return Arrays.equals((float[]) a, (float[]) b);
+		if (a instanceof double[]) return Arrays.equals((double[]) a, (double[]) b);
+		return Array.getLength(a) == 0 && Array.getLength(b) == 0;
+	}
+
+	private static boolean parceledEqual(final Object a, final Object b) {
+		final Parcel parcel_a = Parcel.obtain(), parcel_b = Parcel.obtain();
+		try {
+			parcel_a.writeValue(a);
+			parcel_b.writeValue(b);
+			return Arrays.equals(parcel_a.marshall(), parcel_b.marshall());		// Throws if containing binder or file descriptor
+		} catch (final RuntimeException e) {
+			return false;
+		} finally {
+			parcel_a.recycle();
+			parcel_b.recycle();
+		}
+	}
+
+	private static final @Nullable Method sMethodIsParcelled;
+	static {
+		Method method = null;
+		try {
+			method = BaseBundle.class.getMethod("isParcelled");
+		} catch (final NoSuchMethodException e) {
+			Log.w(TAG, "Incompatible ROM: BaseBundle.isParcelled()");
+		}
+		sMethodIsParcelled = method;
+	}
+
+	private static final String TAG = "Nevo.Compare";
+}
@@ -0,0 +1,96 @@
+package com.oasisfeng.nevo.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Minimal benchmark harness for local JVM: time-boxed warm-up with batch size calibration, then rounds of measurement.
+ * Results are written in JSON for tracking regressions between SDK versions, nothing is printed to console.
+ * Benchmarks are excluded from the regular unit tests, run them with "./gradlew testDebugUnitTest -Pbenchmark".
+ */
+class Benchmark {
+
+	interface Operation { Object run(); }	// Return value is consumed to defeat dead code elimination.
+
+	/** @throws AssertionError if the result is invalid */
+	void measure(final String name, final Operation operation) {
+		final long warmup_deadline = System.nanoTime() + WARMUP_NANOS;
+		int batch = 1;
+		while (true) {
+			final long elapsed = runBatch(operation, batch);
+			if (elapsed < MIN_ROUND_NANOS) batch *= 2;
+			else if (System.nanoTime() >= warmup_deadline) break;
+		}
+		final double[] ns_per_op = new double[ROUNDS];
+		for (int i = 0; i < ROUNDS; i ++) ns_per_op[i] = (double) runBatch(operation, batch) / batch;
+		Arrays.sort(ns_per_op);
+		assertTrue("Invalid measurement of " + name, ns_per_op[0] > 0);
+		mResults.add(new Result(name, batch, ns_per_op));
+	}
+
+	/** Write results to "{suite}.json" in the given directory. */
+	void writeTo(final File dir, final String suite, final Map<String, ?> environment) throws IOException {
+		if (! dir.isDirectory() && ! dir.mkdirs()) throw new IOException("Failed to create " + dir);
+		try (final Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, suite + ".json")), StandardCharsets.UTF_8)) {
+			writer.write(toJson(suite, environment).toString(2));
+		} catch (final JSONException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private JSONObject toJson(final String suite, final Map<String, ?> environment) throws JSONException {
+		final JSONArray results = new JSONArray();
+		for (final Result result : mResults) {
+			final JSONArray rounds = new JSONArray();
+			for (final double value : result.ns_per_op) rounds.put(Math.round(value));
+			results.put(new JSONObject().put("name", result.name).put("ops_per_round", result.batch)
+					.put("median_ns_per_op", Math.round(result.median())).put("min_ns_per_op", Math.round(result.ns_per_op[0])).put("rounds", rounds));
+		}
+		return new JSONObject().put("suite", suite).put("timestamp", System.currentTimeMillis())
+				.put("environment", new JSONObject(environment)).put("results", results);
+	}
+
+	private long runBatch(final Operation operation, final int batch) {
+		int sink = 0;
+		final long start = System.nanoTime();
+		for (int i = 0; i < batch; i ++) {
+			final Object value = operation.run();
+			if (value != null) sink += System.identityHashCode(value);
+		}
+		final long elapsed = System.nanoTime() - start;
+		mSink += sink;
+		return elapsed;
+	}
+
+	private final List<Result> mResults = new ArrayList<>();
+	@SuppressWarnings("unused") private volatile int mSink;
+
+	private static final long WARMUP_NANOS = 1_000_000_000L;
+	private static final long MIN_ROUND_NANOS = 50_000_000L;
+	private static final int ROUNDS = 20;
+
+	private static class Result {
+
+		double median() { return ns_per_op[ns_per_op.length / 2]; }
+
+		Result(final String name, final int batch, final double[] ns_per_op) { this.name = name; this.batch = batch; this.ns_per_op = ns_per_op; }
+
+		final String name;
+		final int batch;
+		final double[] ns_per_op;
+	}
+}
@@ -0,0 +1,142 @@
+package com.oasisfeng.nevo.sdk;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.RemoteInput;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Icon;
+import android.os.Parcel;
+import android.os.Process;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static android.os.Build.VERSION_CODES.O_MR1;
+import static android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE;
+
+/**
+ * Benchmarks of the parceling hot paths on local JVM, with notifications of realistic size.
+ *
+ * The engine-side write-back implementation is replaced by a local stand-in writing the trimmed delta as is,
+ * thus the incremental write-back measures the SDK side only.
+ */
+@RunWith(RobolectricTestRunner.class) @Config(sdk = O_MR1)
+public class ParcelingBenchmark {
+
+	@Before public void setUp() {
+		mContext = RuntimeEnvironment.application;
+		mWriteBack = RemoteImplementation.sWriteBack;
+		RemoteImplementation.sWriteBack = (out, flags, notification, original) -> notification.writeToParcel(out, flags);
+	}
+
+	@After public void tearDown() {
+		RemoteImplementation.sWriteBack = mWriteBack;
+	}
+
+	@Test public void benchmarkMessaging() throws IOException { run("messaging", buildMessaging()); }
+	@Test public void benchmarkBigPicture() throws IOException { run("big_picture", buildBigPicture()); }
+
+	private void run(final String variant, final Notification n) throws IOException {
+		final Benchmark benchmark = new Benchmark();
+		final Parcel parcel = Parcel.obtain(), reusable = Parcel.obtain();
+		try {
+			final MutableStatusBarNotification sbn = create(n);
+			sbn.writeToParcel(parcel, 0);
+			final int sbn_size = parcel.dataSize();
+
+			benchmark.measure("sbn_round_trip", () -> {
+				reusable.setDataSize(0);
+				sbn.writeToParcel(reusable, 0);
+				reusable.setDataPosition(0);
+				return MutableStatusBarNotification.CREATOR.createFromParcel(reusable);
+			});
+
+			parcel.setDataSize(0);
+			n.writeToParcel(parcel, 0);
+			benchmark.measure("unparcel_and_snapshot", () -> {
+				parcel.setDataPosition(0);
+				final MutableNotificationBaseImpl mutable = MutableNotificationBaseImpl.CREATOR.createFromParcel(parcel);
+				return mutable.getOriginalMutableKeeper();		// Snapshot by copyMutableFields()
+			});
+
+			parcel.setDataSize(0);
+			sbn.writeToParcel(parcel, 0);
+			parcel.setDataPosition(0);
+			final MutableStatusBarNotification evolving = MutableStatusBarNotification.CREATOR.createFromParcel(parcel);
+			evolving.setTag("split");
+			evolving.getNotification().extras.putString(Notification.EXTRA_SUB_TEXT, "Evolved");
+			evolving.setAllowIncrementalWriteBack();
+			benchmark.measure("incremental_write_back", () -> {
+				reusable.setDataSize(0);
+				evolving.writeToParcel(reusable, PARCELABLE_WRITE_RETURN_VALUE);
+				return reusable;
+			});
+
+			final String[] tags = { "split-a", "split-b" };
+			final int[] counter = { 0 };
+			benchmark.measure("update_key", () -> {
+				final int i = counter[0] ++;
+				evolving.setTag(tags[i & 1]);
+				evolving.setId(i & 3);
+				return evolving.getKey();
+			});
+
+			final Map<String, Object> environment = new HashMap<>();
+			environment.put("sdk_version", mContext.getString(R.string.nevo_sdk_version));
+			environment.put("api_version", mContext.getResources().getInteger(R.integer.nevo_api_version));
+			environment.put("java_version", System.getProperty("java.version"));
+			environment.put("sbn_parcel_bytes", sbn_size);
+			benchmark.writeTo(new File(System.getProperty("nevo.benchmark.output", "build/reports/benchmark")), "parceling-" + variant, environment);
+		} finally {
+			parcel.recycle();
+			reusable.recycle();
+		}
+	}
+
+	private Notification buildMessaging() {
+		final Notification.MessagingStyle style = new Notification.MessagingStyle("Me").setConversationTitle("Weekend trip");
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < MESSAGES; i ++)
+			style.addMessage("Message #" + i + ": Shall we meet at the station half an hour earlier to grab some coffee?",
+					now - (MESSAGES - i) * 60_000L, i % 4 == 0 ? null : "Friend " + (i % 3));
+		final PendingIntent reply = PendingIntent.getBroadcast(mContext, 0, new Intent("REPLY"), 0);
+		final Notification.Action action = new Notification.Action.Builder(Icon.createWithResource(mContext, android.R.drawable.ic_menu_send), "Reply", reply)
+				.addRemoteInput(new RemoteInput.Builder("text").setLabel("Reply").build()).build();
+		return new Notification.Builder(mContext, "chat").setSmallIcon(android.R.drawable.stat_notify_chat)
+				.setLargeIcon(Bitmap.createBitmap(192, 192, Bitmap.Config.ARGB_8888)).setStyle(style).addAction(action).build();
+	}
+
+	private Notification buildBigPicture() {
+		final Bitmap picture = Bitmap.createBitmap(1440, 720, Bitmap.Config.ARGB_8888);
+		return new Notification.Builder(mContext, "photo").setSmallIcon(android.R.drawable.stat_notify_chat).setContentTitle("New photo")
+				.setContentText("Shared with you").setStyle(new Notification.BigPictureStyle().bigPicture(picture)).build();
+	}
+
+	private static MutableStatusBarNotification create(final Notification n) {
+		final MutableNotificationBaseImpl mutable = new MutableNotificationBaseImpl(n);
+		try { //noinspection JavaReflectionMemberAccess
+			Notification.class.getMethod("cloneInto", Notification.class, boolean.class).invoke(n, mutable, true);
+		} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException(e);
+		}
+		return new MutableStatusBarNotification("com.example.chat", null, 1, "tag", Process.myUid(), 0, mutable, Process.myUserHandle(), System.currentTimeMillis());
+	}
+
+	private Context mContext;
+	private RemoteImplementation.WriteBack mWriteBack;
+
+	private static final int MESSAGES = 25;		// History size of a busy conversation
+}